@@ -0,0 +1,94 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.github.avatar.ui.Avatar;
+import org.github.avatar.ui.AvatarStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of cached avatar lookups from many threads at once
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+	/**
+	 * Per-thread position in the cached hashes
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int index = (int) Thread.currentThread().getId() * 7919;
+	}
+
+	/**
+	 * Number of cached avatars
+	 */
+	@Param({ "1000" })
+	public int avatars;
+
+	private AvatarStore store;
+	private String[] hashes;
+
+	/**
+	 * Create store with cached avatars
+	 */
+	@Setup
+	public void setup() {
+		this.store = Fixtures.createStore(this.avatars, 1024);
+		this.hashes = new String[this.avatars];
+		for (int i = 0; i < this.avatars; i++)
+			this.hashes[i] = this.store.getHash(Fixtures.getEmail(i));
+	}
+
+	private Avatar lookup(Cursor cursor) {
+		int index = (cursor.index++ & Integer.MAX_VALUE) % this.hashes.length;
+		return this.store.getAvatarByHash(this.hashes[index]);
+	}
+
+	/**
+	 * @param cursor
+	 * @return avatar
+	 */
+	@Benchmark
+	@Threads(1)
+	public Avatar getAvatarByHash(Cursor cursor) {
+		return lookup(cursor);
+	}
+
+	/**
+	 * @param cursor
+	 * @return avatar
+	 */
+	@Benchmark
+	@Threads(8)
+	public Avatar getAvatarByHashContended(Cursor cursor) {
+		return lookup(cursor);
+	}
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.github.avatar.ui.Avatar;
+import org.github.avatar.ui.AvatarImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of decoding avatar image data
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	/**
+	 * Width and height of the encoded image
+	 */
+	@Param({ "32", "80", "200" })
+	public int size;
+
+	private Avatar avatar;
+
+	/**
+	 * Create PNG avatar
+	 */
+	@Setup
+	public void setup() {
+		this.avatar = new Avatar("decode", System.currentTimeMillis(), //$NON-NLS-1$
+				Fixtures.createPng(this.size));
+	}
+
+	/**
+	 * @return image data
+	 */
+	@Benchmark
+	public ImageData getData() {
+		return new AvatarImage(this.avatar).getData();
+	}
+}
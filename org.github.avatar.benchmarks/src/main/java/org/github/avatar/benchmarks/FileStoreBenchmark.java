@@ -0,0 +1,125 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.github.avatar.ui.AvatarFileStore;
+import org.github.avatar.ui.AvatarStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of saving a store to, and loading a store from, an empty file
+ * store. Each invocation is a single cold operation.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileStoreBenchmark {
+
+	/**
+	 * Number of avatars saved and loaded
+	 */
+	@Param({ "1000", "10000", "100000" })
+	public int entries;
+
+	private AvatarStore store;
+	private File directory;
+	private File saveFile;
+	private File loadFile;
+
+	/**
+	 * Create store and the file that is loaded
+	 *
+	 * @throws IOException
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.store = Fixtures.createStore(this.entries, 512);
+		this.directory = File.createTempFile("avatars", null); //$NON-NLS-1$
+		this.directory.delete();
+		this.saveFile = new File(new File(this.directory, "save"), //$NON-NLS-1$
+				AvatarFileStore.DEFAULT_STORE_NAME);
+		this.loadFile = new File(new File(this.directory, "load"), //$NON-NLS-1$
+				AvatarFileStore.DEFAULT_STORE_NAME);
+		this.saveFile.getParentFile().mkdirs();
+		this.loadFile.getParentFile().mkdirs();
+		AvatarFileStore fileStore = new AvatarFileStore(this.loadFile);
+		try {
+			fileStore.save(this.store);
+		} finally {
+			fileStore.close();
+		}
+	}
+
+	/**
+	 * Remove previously saved files so every save starts empty
+	 */
+	@Setup(Level.Invocation)
+	public void clean() {
+		this.saveFile.delete();
+		new File(this.saveFile.getPath() + AvatarFileStore.INDEX_SUFFIX)
+				.delete();
+	}
+
+	/**
+	 * Delete files
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(this.directory);
+	}
+
+	/**
+	 * @return file store
+	 * @throws IOException
+	 */
+	@Benchmark
+	public AvatarFileStore save() throws IOException {
+		AvatarFileStore fileStore = new AvatarFileStore(this.saveFile);
+		try {
+			return fileStore.save(this.store);
+		} finally {
+			fileStore.close();
+		}
+	}
+
+	/**
+	 * @return loaded store
+	 * @throws Exception
+	 */
+	@Benchmark
+	public AvatarStore load() throws Exception {
+		AvatarFileStore fileStore = new AvatarFileStore(this.loadFile);
+		try {
+			return fileStore.load();
+		} finally {
+			fileStore.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.eclipse.swt.graphics.PaletteData;
+import org.github.avatar.ui.Avatar;
+import org.github.avatar.ui.AvatarStore;
+
+/**
+ * Fixtures shared by the benchmark suites
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public abstract class Fixtures {
+
+	/**
+	 * Get e-mail address for index
+	 *
+	 * @param index
+	 * @return e-mail address
+	 */
+	public static String getEmail(int index) {
+		return "User." + index + "@Example.com"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Create random payload
+	 *
+	 * @param length
+	 * @param seed
+	 * @return bytes
+	 */
+	public static byte[] createPayload(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Create PNG encoded gradient image
+	 *
+	 * @param size
+	 * @return PNG bytes
+	 */
+	public static byte[] createPng(int size) {
+		ImageData data = new ImageData(size, size, 24, new PaletteData(
+				0xFF0000, 0xFF00, 0xFF));
+		for (int y = 0; y < size; y++)
+			for (int x = 0; x < size; x++)
+				data.setPixel(x, y, ((x * 255 / size) << 16)
+						| ((y * 255 / size) << 8) | ((x + y) & 0xFF));
+		ImageLoader loader = new ImageLoader();
+		loader.data = new ImageData[] { data };
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		loader.save(output, SWT.IMAGE_PNG);
+		return output.toByteArray();
+	}
+
+	/**
+	 * Create store holding the given number of avatars in memory
+	 *
+	 * @param count
+	 * @param length
+	 *            of each avatar payload
+	 * @return store
+	 */
+	public static AvatarStore createStore(int count, int length) {
+		AvatarStore store = new AvatarStore();
+		store.setCacheSize(Long.MAX_VALUE);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			String hash = store.getHash(getEmail(i));
+			store.getCache().put(hash,
+					new Avatar(hash, now, createPayload(length, i)));
+		}
+		return store;
+	}
+
+	/**
+	 * Delete file or directory recursively
+	 *
+	 * @param file
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.github.avatar.ui.AvatarStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of e-mail hashing and hash validation. The distinct variant
+ * cycles through more addresses than the store memoizes so that it measures
+ * the digest path rather than the memo.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+	private static final int DISTINCT = 1 << 16;
+
+	/**
+	 * Per-thread position in the distinct addresses
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int index;
+	}
+
+	private AvatarStore store;
+	private String email;
+	private String[] emails;
+	private String validHash;
+	private String invalidHash;
+
+	/**
+	 * Create store and inputs
+	 */
+	@Setup
+	public void setup() {
+		this.store = new AvatarStore();
+		this.email = Fixtures.getEmail(0);
+		this.emails = new String[DISTINCT];
+		for (int i = 0; i < DISTINCT; i++)
+			this.emails[i] = Fixtures.getEmail(i);
+		this.validHash = this.store.getHash(this.email);
+		this.invalidHash = this.validHash.substring(0, 31) + 'g';
+	}
+
+	/**
+	 * @return hash
+	 */
+	@Benchmark
+	public String getHash() {
+		return this.store.getHash(this.email);
+	}
+
+	/**
+	 * @param cursor
+	 * @return hash
+	 */
+	@Benchmark
+	public String getHashDistinct(Cursor cursor) {
+		return this.store.getHash(this.emails[cursor.index++ & (DISTINCT - 1)]);
+	}
+
+	/**
+	 * @return hash
+	 */
+	@Benchmark
+	public String getAdaptedHash() {
+		return this.store.getAdaptedHash(this.email);
+	}
+
+	/**
+	 * @return true
+	 */
+	@Benchmark
+	public boolean isValidHash() {
+		return this.store.isValidHash(this.validHash);
+	}
+
+	/**
+	 * @return false
+	 */
+	@Benchmark
+	public boolean isValidHashInvalid() {
+		return this.store.isValidHash(this.invalidHash);
+	}
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link AvatarFetchScheduler}
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarFetchSchedulerTest {
+
+	private static final String HOST = "gravatar.com"; //$NON-NLS-1$
+
+	private final List<String> order = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+	private AvatarFetchScheduler scheduler;
+
+	/**
+	 * Create scheduler with a single worker that is blocked until the gate
+	 * opens so fetches scheduled by a test queue up behind it
+	 *
+	 * @throws Exception
+	 */
+	@Before
+	public void blockScheduler() throws Exception {
+		this.scheduler = new AvatarFetchScheduler(1, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		this.scheduler.schedule(HOST, null, new Runnable() {
+
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Open gate in case a test failed before doing so
+	 */
+	@After
+	public void openGate() {
+		this.gate.countDown();
+	}
+
+	private Runnable record(final String name, final CountDownLatch done) {
+		return new Runnable() {
+
+			public void run() {
+				order.add(name);
+				done.countDown();
+			}
+		};
+	}
+
+	private void runQueued(CountDownLatch done) throws InterruptedException {
+		this.gate.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Interactive fetches run first with the most recent one first, other
+	 * fetches run in the order they were scheduled
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void priorityOrder() throws Exception {
+		CountDownLatch done = new CountDownLatch(6);
+		this.scheduler.schedule(HOST, null, IAvatarRequest.PRIORITY_BACKGROUND,
+				record("bg1", done));
+		this.scheduler.schedule(HOST, null, IAvatarRequest.PRIORITY_NORMAL,
+				record("n1", done));
+		this.scheduler.schedule(HOST, null,
+				IAvatarRequest.PRIORITY_INTERACTIVE, record("i1", done));
+		this.scheduler.schedule(HOST, null,
+				IAvatarRequest.PRIORITY_INTERACTIVE, record("i2", done));
+		this.scheduler.schedule(HOST, null, IAvatarRequest.PRIORITY_BACKGROUND,
+				record("bg2", done));
+		this.scheduler.schedule(HOST, null, IAvatarRequest.PRIORITY_NORMAL,
+				record("n2", done));
+		assertEquals(6, this.scheduler.getQueuedCount());
+		runQueued(done);
+		assertEquals(Arrays.asList("i2", "i1", "n1", "n2", "bg1", "bg2"),
+				this.order);
+	}
+
+	/**
+	 * Cancelled fetches are removed from the queue and never run
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void cancelQueued() throws Exception {
+		CountDownLatch done = new CountDownLatch(2);
+		Runnable first = record("first", done);
+		Runnable cancelled = record("cancelled", new CountDownLatch(1));
+		Runnable last = record("last", done);
+		this.scheduler.schedule(HOST, null, first);
+		this.scheduler.schedule(HOST, null, cancelled);
+		this.scheduler.schedule(HOST, null, last);
+
+		assertTrue(this.scheduler.cancel(cancelled));
+		assertFalse(this.scheduler.cancel(cancelled));
+		assertEquals(2, this.scheduler.getQueuedCount());
+		runQueued(done);
+		assertEquals(Arrays.asList("first", "last"), this.order);
+		assertFalse(this.scheduler.cancel(first));
+	}
+
+	/**
+	 * Changing the priority of a queued fetch moves it as if it had just been
+	 * scheduled with that priority
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void promote() throws Exception {
+		CountDownLatch done = new CountDownLatch(3);
+		Runnable background = record("background", done);
+		this.scheduler.schedule(HOST, null, IAvatarRequest.PRIORITY_BACKGROUND,
+				background);
+		this.scheduler.schedule(HOST, null,
+				IAvatarRequest.PRIORITY_INTERACTIVE, record("interactive", done));
+		this.scheduler.schedule(HOST, null, IAvatarRequest.PRIORITY_NORMAL,
+				record("normal", done));
+
+		assertTrue(this.scheduler.setPriority(background,
+				IAvatarRequest.PRIORITY_INTERACTIVE));
+		assertEquals(3, this.scheduler.getQueuedCount());
+		runQueued(done);
+		assertEquals(Arrays.asList("background", "interactive", "normal"),
+				this.order);
+		assertFalse(this.scheduler.setPriority(background,
+				IAvatarRequest.PRIORITY_BACKGROUND));
+	}
+
+	/**
+	 * Run fetches against hosts and get the largest number that ran at the
+	 * same time
+	 *
+	 * @param limited
+	 * @param hosts
+	 * @param perHost
+	 * @return maximum number of concurrent fetches
+	 * @throws Exception
+	 */
+	private int getMaxRunning(AvatarFetchScheduler limited, int hosts,
+			int perHost) throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger max = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(hosts * perHost);
+		final Runnable fetch = new Runnable() {
+
+			public void run() {
+				int current = running.incrementAndGet();
+				while (true) {
+					int previous = max.get();
+					if (current <= previous
+							|| max.compareAndSet(previous, current))
+						break;
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				done.countDown();
+			}
+		};
+		for (int i = 0; i < perHost; i++)
+			for (int host = 0; host < hosts; host++)
+				limited.schedule("host" + host, null, new Runnable() {
+
+					public void run() {
+						fetch.run();
+					}
+				});
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, limited.getQueuedCount());
+		return max.get();
+	}
+
+	/**
+	 * Fetches against a single host never exceed the per-host limit
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void perHostLimit() throws Exception {
+		assertEquals(2, getMaxRunning(new AvatarFetchScheduler(8, 2), 1, 10));
+	}
+
+	/**
+	 * Fetches against several hosts never exceed the concurrency limit
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void concurrencyLimit() throws Exception {
+		assertEquals(3, getMaxRunning(new AvatarFetchScheduler(3, 2), 4, 3));
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests of {@link AvatarFileStore}
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarFileStoreTest {
+
+	/**
+	 * Folder holding the data and index files
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	private File indexFile;
+
+	private AvatarFileStore store;
+
+	/**
+	 * Create file store in temporary folder
+	 */
+	@Before
+	public void createStore() {
+		this.file = new File(this.folder.getRoot(),
+				AvatarFileStore.DEFAULT_STORE_NAME);
+		this.indexFile = new File(this.file.getPath()
+				+ AvatarFileStore.INDEX_SUFFIX);
+		this.store = new AvatarFileStore(this.file);
+	}
+
+	/**
+	 * Close file store
+	 */
+	@After
+	public void closeStore() {
+		this.store.close();
+	}
+
+	private static Avatar createAvatar(int id, long updateTime, int length) {
+		byte[] bytes = new byte[length];
+		bytes[0] = (byte) id;
+		bytes[length - 1] = (byte) updateTime;
+		return new Avatar(getHash(id), updateTime, bytes, "etag" + id, //$NON-NLS-1$
+				updateTime * 10);
+	}
+
+	private static String getHash(int id) {
+		return String.format("%032x", Integer.valueOf(id)); //$NON-NLS-1$
+	}
+
+	private void writeAvatars(int from, int to, long updateTime, int length)
+			throws IOException {
+		for (int i = from; i < to; i++)
+			this.store.write(createAvatar(i, updateTime, length));
+		this.store.flush();
+	}
+
+	private AvatarFileStore reopen() throws Exception {
+		this.store.close();
+		this.store = new AvatarFileStore(this.file);
+		this.store.load();
+		return this.store;
+	}
+
+	private void assertAvatars(int count, long updateTime, int length)
+			throws IOException {
+		assertEquals(count, this.store.size());
+		for (int i = 0; i < count; i++) {
+			Avatar avatar = this.store.read(getHash(i));
+			assertNotNull(avatar);
+			assertEquals(updateTime, avatar.getUpdateTime());
+			assertEquals(updateTime * 10, avatar.getLastModified());
+			assertEquals("etag" + i, avatar.getEtag()); //$NON-NLS-1$
+			byte[] bytes = avatar.getBytes();
+			assertEquals(length, bytes.length);
+			assertEquals((byte) i, bytes[0]);
+			assertEquals((byte) updateTime, bytes[length - 1]);
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		try {
+			byte[] bytes = new byte[(int) input.length()];
+			input.readFully(bytes);
+			return bytes;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static void writeFile(File file, byte[] bytes, boolean append)
+			throws IOException {
+		FileOutputStream output = new FileOutputStream(file, append);
+		try {
+			output.write(bytes);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Records appended after the index was last written are recovered and a
+	 * torn record at the end of the data file is discarded
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void recoverUnindexedRecords() throws Exception {
+		writeAvatars(0, 10, 1, 100);
+		byte[] index = readFile(this.indexFile);
+		writeAvatars(10, 15, 1, 100);
+		this.store.close();
+
+		// Crash after appending records but before replacing the index
+		writeFile(this.indexFile, index, false);
+		long length = this.file.length();
+		writeFile(this.file, new byte[] { 0x41, 0x56, 0x52, 0x44, 0, 5, 'a' },
+				true);
+
+		reopen();
+		assertEquals(length, this.file.length());
+		assertAvatars(15, 1, 100);
+	}
+
+	/**
+	 * An unreadable index is rebuilt from the data file
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void rebuildCorruptIndex() throws Exception {
+		writeAvatars(0, 10, 1, 100);
+		writeAvatars(0, 10, 2, 100);
+		this.store.close();
+		writeFile(this.indexFile, new byte[] { 1, 2, 3 }, false);
+
+		reopen();
+		assertAvatars(10, 2, 100);
+	}
+
+	/**
+	 * A data file that is mostly superseded records is compacted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void compactSupersededRecords() throws Exception {
+		int length = 50000;
+		for (int updateTime = 1; updateTime <= 6; updateTime++) {
+			writeAvatars(0, 15, updateTime, length);
+			assertTrue(this.file.length() <= 2 * 15 * (length + 200));
+		}
+		assertAvatars(15, 6, length);
+
+		reopen();
+		assertAvatars(15, 6, length);
+	}
+}
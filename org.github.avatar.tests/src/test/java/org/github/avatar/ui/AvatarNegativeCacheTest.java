@@ -0,0 +1,131 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link AvatarNegativeCache}
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarNegativeCacheTest {
+
+	private static final String KEY = "0123456789abcdef0123456789abcdef"; //$NON-NLS-1$
+
+	/**
+	 * Cache whose time only moves when a test advances it
+	 */
+	private static class ManualClockCache extends AvatarNegativeCache {
+
+		private long time = 1000000L;
+
+		long getCurrentTime() {
+			return this.time;
+		}
+
+		ManualClockCache advance(long millis) {
+			this.time += millis;
+			return this;
+		}
+	}
+
+	/**
+	 * Failed loads are suppressed until the ttl passes
+	 */
+	@Test
+	public void suppressUntilTtlPasses() {
+		ManualClockCache cache = new ManualClockCache();
+		cache.setTtl(50);
+		assertFalse(cache.isSuppressed(KEY));
+		assertEquals(50, cache.failed(KEY));
+		assertTrue(cache.isSuppressed(KEY));
+		assertEquals(1, cache.getHitCount());
+		assertTrue(cache.advance(49).isSuppressed(KEY));
+		assertFalse(cache.advance(1).isSuppressed(KEY));
+	}
+
+	/**
+	 * Every further failure doubles the ttl up to the maximum
+	 */
+	@Test
+	public void backOffExponentially() {
+		AvatarNegativeCache cache = new AvatarNegativeCache().setTtl(1000)
+				.setMaxTtl(5000);
+		assertEquals(1000, cache.failed(KEY));
+		assertEquals(2000, cache.failed(KEY));
+		assertEquals(4000, cache.failed(KEY));
+		assertEquals(5000, cache.failed(KEY));
+		assertEquals(5000, cache.failed(KEY));
+	}
+
+	/**
+	 * A successful load forgets previous failures
+	 */
+	@Test
+	public void forgetOnSuccess() {
+		AvatarNegativeCache cache = new AvatarNegativeCache().setTtl(1000);
+		cache.failed(KEY);
+		cache.failed(KEY);
+		cache.succeeded(KEY);
+		assertFalse(cache.isSuppressed(KEY));
+		assertEquals(0, cache.size());
+		assertEquals(1000, cache.failed(KEY));
+	}
+
+	/**
+	 * The number of remembered failures is bounded
+	 */
+	@Test
+	public void maxSize() {
+		AvatarNegativeCache cache = new AvatarNegativeCache().setTtl(60000)
+				.setMaxSize(10);
+		for (int i = 0; i < 100; i++)
+			cache.failed(KEY + i);
+		assertTrue(cache.size() <= 10);
+	}
+
+	/**
+	 * Purging a full cache keeps the failure counts of avatars that failed
+	 * recently so that their backoff continues
+	 */
+	@Test
+	public void keepBackoffWhenFull() {
+		ManualClockCache cache = new ManualClockCache();
+		cache.setTtl(1000).setMaxTtl(8000).setMaxSize(10);
+		assertEquals(1000, cache.failed(KEY));
+		assertEquals(2000, cache.failed(KEY));
+		cache.advance(2000);
+		assertFalse(cache.isSuppressed(KEY));
+		for (int i = 0; i < 20; i++)
+			cache.failed(KEY + i);
+		assertTrue(cache.size() <= 10);
+		assertEquals(4000, cache.failed(KEY));
+	}
+
+	/**
+	 * Failures that expired longer than the maximum ttl ago are forgotten
+	 * first when the cache is full
+	 */
+	@Test
+	public void purgeStaleFailures() {
+		ManualClockCache cache = new ManualClockCache();
+		cache.setTtl(1000).setMaxTtl(4000).setMaxSize(10);
+		for (int i = 0; i < 9; i++)
+			cache.failed(KEY + i);
+		cache.advance(5000);
+		cache.failed(KEY);
+		cache.failed(KEY + 9);
+		assertEquals(2, cache.size());
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link AvatarScaler}
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarScalerTest {
+
+	private static final PaletteData DIRECT = new PaletteData(0xFF0000,
+			0xFF00, 0xFF);
+
+	private static ImageData createImage(int width, int height, int pixel) {
+		ImageData image = new ImageData(width, height, 24, DIRECT);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				image.setPixel(x, y, pixel);
+		return image;
+	}
+
+	/**
+	 * Scaled images have the requested size and the scaler's format
+	 */
+	@Test
+	public void format() {
+		ImageData scaled = AvatarScaler.scale(createImage(80, 60, 0), 32, 24);
+		assertEquals(32, scaled.width);
+		assertEquals(24, scaled.height);
+		assertEquals(AvatarScaler.DEPTH, scaled.depth);
+		assertEquals(AvatarScaler.SCANLINE_PAD, scaled.scanlinePad);
+		assertTrue(scaled.palette.isDirect);
+		assertEquals(AvatarScaler.PALETTE.redMask, scaled.palette.redMask);
+		assertEquals(AvatarScaler.PALETTE.greenMask, scaled.palette.greenMask);
+		assertEquals(AvatarScaler.PALETTE.blueMask, scaled.palette.blueMask);
+	}
+
+	/**
+	 * A solid opaque image stays solid and opaque at any size
+	 */
+	@Test
+	public void solidColor() {
+		ImageData red = createImage(80, 80, 0xFF0000);
+		int[] sizes = new int[] { 1, 32, 48, 160 };
+		for (int i = 0; i < sizes.length; i++) {
+			ImageData scaled = AvatarScaler.scale(red, sizes[i], sizes[i]);
+			assertNull(scaled.alphaData);
+			for (int y = 0; y < scaled.height; y++)
+				for (int x = 0; x < scaled.width; x++)
+					assertEquals(new RGB(255, 0, 0),
+							scaled.palette.getRGB(scaled.getPixel(x, y)));
+		}
+	}
+
+	/**
+	 * Downscaling averages the area covered by each pixel
+	 */
+	@Test
+	public void averageArea() {
+		ImageData gradient = new ImageData(256, 4, 24, DIRECT);
+		for (int y = 0; y < 4; y++)
+			for (int x = 0; x < 256; x++)
+				gradient.setPixel(x, y, x << 8);
+		ImageData scaled = AvatarScaler.scale(gradient, 64, 1);
+		for (int x = 0; x < 64; x++) {
+			RGB rgb = scaled.palette.getRGB(scaled.getPixel(x, 0));
+			assertTrue(Math.abs(rgb.green - (x * 4 + 1.5)) <= 1);
+			assertEquals(0, rgb.red);
+			assertEquals(0, rgb.blue);
+		}
+	}
+
+	/**
+	 * Transparent pixels contribute to the alpha but not to the color of the
+	 * scaled pixel
+	 */
+	@Test
+	public void weightByAlpha() {
+		ImageData checker = createImage(64, 64, 0);
+		for (int y = 0; y < 64; y++)
+			for (int x = 0; x < 64; x++) {
+				boolean opaque = ((x + y) & 1) == 0;
+				if (opaque)
+					checker.setPixel(x, y, 0xFFFFFF);
+				checker.setAlpha(x, y, opaque ? 255 : 0);
+			}
+		ImageData scaled = AvatarScaler.scale(checker, 16, 16);
+		assertNotNull(scaled.alphaData);
+		for (int y = 0; y < 16; y++)
+			for (int x = 0; x < 16; x++) {
+				assertEquals(new RGB(255, 255, 255),
+						scaled.palette.getRGB(scaled.getPixel(x, y)));
+				assertTrue(Math.abs(scaled.getAlpha(x, y) - 128) <= 1);
+			}
+	}
+
+	/**
+	 * Indexed images are converted and their transparent pixel is honored
+	 */
+	@Test
+	public void indexedTransparentPixel() {
+		ImageData indexed = new ImageData(4, 4, 8, new PaletteData(
+				new RGB[] { new RGB(0, 0, 255), new RGB(0, 255, 0) }));
+		for (int y = 0; y < 4; y++)
+			for (int x = 0; x < 4; x++)
+				indexed.setPixel(x, y, x < 2 ? 0 : 1);
+		indexed.transparentPixel = 1;
+		ImageData scaled = AvatarScaler.scale(indexed, 2, 2);
+		assertNotNull(scaled.alphaData);
+		for (int y = 0; y < 2; y++) {
+			assertEquals(new RGB(0, 0, 255),
+					scaled.palette.getRGB(scaled.getPixel(0, y)));
+			assertEquals(255, scaled.getAlpha(0, y));
+			assertEquals(0, scaled.getAlpha(1, y));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link AvatarSlabArena}
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarSlabArenaTest {
+
+	private static final int SLAB_SIZE = 1000;
+
+	private static byte[] createBytes(int length, int value) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) value);
+		bytes[0] = (byte) (value >> 8);
+		return bytes;
+	}
+
+	private static Avatar createAvatar(int value) {
+		return new Avatar("avatar" + value, 1L, createBytes(100, value)); //$NON-NLS-1$
+	}
+
+	private static void collectGarbage() throws InterruptedException {
+		System.gc();
+		Thread.sleep(5);
+	}
+
+	/**
+	 * Stored avatars hold their data in the arena
+	 */
+	@Test
+	public void store() {
+		AvatarSlabArena arena = new AvatarSlabArena(SLAB_SIZE);
+		Avatar avatar = createAvatar(1);
+		Avatar stored = arena.store(avatar);
+		assertTrue(stored.isStoredIn(arena));
+		assertEquals(avatar, stored);
+		assertArrayEquals(avatar.getBytes(), stored.getBytes());
+		assertEquals(ByteBuffer.wrap(avatar.getBytes()), stored.getBuffer());
+		assertEquals(100, arena.getByteCount());
+		assertEquals(SLAB_SIZE, arena.getCapacity());
+	}
+
+	/**
+	 * Avatars with identical data share it
+	 */
+	@Test
+	public void shareIdenticalData() {
+		AvatarSlabArena arena = new AvatarSlabArena(SLAB_SIZE);
+		Avatar first = arena.store(new Avatar("a", 1L, createBytes(100, 7))); //$NON-NLS-1$
+		Avatar second = arena.store(new Avatar("b", 1L, createBytes(100, 7))); //$NON-NLS-1$
+		assertTrue(first.isStoredIn(arena));
+		assertTrue(second.isStoredIn(arena));
+		assertEquals(100, arena.getByteCount());
+	}
+
+	/**
+	 * Buffers keep the data they view from being freed and reused after the
+	 * avatar is no longer referenced
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void viewOutlivesAvatar() throws Exception {
+		AvatarSlabArena arena = new AvatarSlabArena(SLAB_SIZE);
+		ByteBuffer buffer = arena.store(createAvatar(1)).getBuffer();
+		for (int round = 0; round < 20; round++) {
+			collectGarbage();
+			List<Avatar> avatars = new ArrayList<Avatar>();
+			for (int i = 0; i < 10; i++)
+				avatars.add(arena.store(createAvatar(round * 10 + i + 2)));
+		}
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		assertArrayEquals(createBytes(100, 1), bytes);
+	}
+
+	/**
+	 * Data that would grow the arena beyond its maximum capacity stays on the
+	 * heap
+	 */
+	@Test
+	public void maxCapacity() {
+		AvatarSlabArena arena = new AvatarSlabArena(SLAB_SIZE)
+				.setMaxCapacity(2 * SLAB_SIZE);
+		List<Avatar> avatars = new ArrayList<Avatar>();
+		for (int i = 0; i < 30; i++)
+			avatars.add(arena.store(createAvatar(i)));
+		assertEquals(2 * SLAB_SIZE, arena.getCapacity());
+		assertTrue(avatars.get(0).isStoredIn(arena));
+		assertFalse(avatars.get(29).isStoredIn(arena));
+		for (int i = 0; i < 30; i++)
+			assertArrayEquals(createBytes(100, i), avatars.get(i).getBytes());
+	}
+
+	/**
+	 * A few long-lived avatars spread over many slabs are moved together
+	 * instead of keeping every one of those slabs allocated
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void compactSparseSlabs() throws Exception {
+		AvatarSlabArena arena = new AvatarSlabArena(SLAB_SIZE);
+		List<Avatar> survivors = new ArrayList<Avatar>();
+		for (int round = 0; round < 200; round++) {
+			List<Avatar> avatars = new ArrayList<Avatar>();
+			for (int i = 0; i < 10; i++)
+				avatars.add(arena.store(createAvatar(round * 10 + i)));
+			if (round % 5 == 0)
+				survivors.add(avatars.get(0));
+			avatars = null;
+			collectGarbage();
+		}
+		// 40 survivors fit into 4 slabs, without compaction they pin 40
+		assertTrue(arena.getCapacity() <= 20 * SLAB_SIZE);
+		for (int i = 0; i < survivors.size(); i++) {
+			Avatar survivor = survivors.get(i);
+			assertTrue(survivor.isStoredIn(arena));
+			assertArrayEquals(createBytes(100, i * 50), survivor.getBytes());
+		}
+	}
+}
@@ -8,12 +8,21 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
 import org.eclipse.core.runtime.Assert;
 
 /**
- * Avatar class containing id and image data.
+ * Avatar class containing id and image data. Image data is either held in a
+ * byte array or, for avatars stored in an {@link AvatarSlabArena}, outside of
+ * the heap.
  * 
  * @author Kevin Sawicki (kevin@github.com)
  */
@@ -24,9 +33,52 @@ public class Avatar implements Serializable {
 	 */
 	private static final long serialVersionUID = 7303486086217698261L;
 
+	/**
+	 * Stream that reads the remaining bytes of a buffer
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, len);
+			return len;
+		}
+
+		public long skip(long n) {
+			int skipped = (int) Math.max(0L,
+					Math.min(n, this.buffer.remaining()));
+			this.buffer.position(this.buffer.position() + skipped);
+			return skipped;
+		}
+
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+
 	private String id;
+	private int size;
 	private long updateTime;
 	private byte[] bytes;
+	private String etag;
+	private long lastModified;
+	private transient volatile String digest;
+	private transient AvatarSlabArena arena;
+	private transient AvatarSlabArena.Handle handle;
 
 	/**
 	 * Create avatar
@@ -36,18 +88,163 @@ public class Avatar implements Serializable {
 	 * @param bytes
 	 */
 	public Avatar(String id, long updateTime, byte[] bytes) {
+		this(id, updateTime, bytes, null, 0L);
+	}
+
+	/**
+	 * Create avatar with HTTP validators
+	 * 
+	 * @param id
+	 * @param updateTime
+	 * @param bytes
+	 * @param etag
+	 *            entity tag sent by the server, may be null
+	 * @param lastModified
+	 *            last modified time sent by the server, 0 if unknown
+	 */
+	public Avatar(String id, long updateTime, byte[] bytes, String etag,
+			long lastModified) {
+		this(id, 0, updateTime, bytes, etag, lastModified);
+	}
+
+	/**
+	 * Create avatar variant of the given size with HTTP validators
+	 * 
+	 * @param id
+	 * @param size
+	 *            standard size the variant was requested at, 0 for the
+	 *            server's default size
+	 * @param updateTime
+	 * @param bytes
+	 * @param etag
+	 *            entity tag sent by the server, may be null
+	 * @param lastModified
+	 *            last modified time sent by the server, 0 if unknown
+	 */
+	public Avatar(String id, int size, long updateTime, byte[] bytes,
+			String etag, long lastModified) {
 		Assert.isNotNull(id, "Id cannot be null"); //$NON-NLS-1$
 		Assert.isNotNull(bytes, "Bytes cannot be null"); //$NON-NLS-1$
 		this.id = id;
+		this.size = size;
 		this.updateTime = updateTime;
 		this.bytes = bytes;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Create a copy of this avatar that shares its image data but has new
+	 * update time and validators. Used when the server reports the image as
+	 * not modified.
+	 * 
+	 * @param updateTime
+	 * @param etag
+	 * @param lastModified
+	 * @return avatar
+	 */
+	Avatar revalidate(long updateTime, String etag, long lastModified) {
+		Avatar avatar;
+		if (this.handle != null) {
+			avatar = new Avatar(this, this.arena, this.handle);
+			avatar.updateTime = updateTime;
+			avatar.etag = etag;
+			avatar.lastModified = lastModified;
+		} else {
+			avatar = new Avatar(this.id, this.size, updateTime, this.bytes,
+					etag, lastModified);
+			avatar.digest = this.digest;
+		}
+		return avatar;
+	}
+
+	/**
+	 * Create avatar with image data held in arena
+	 * 
+	 * @param avatar
+	 * @param arena
+	 * @param handle
+	 */
+	private Avatar(Avatar avatar, AvatarSlabArena arena,
+			AvatarSlabArena.Handle handle) {
+		this.id = avatar.id;
+		this.size = avatar.size;
+		this.updateTime = avatar.updateTime;
+		this.etag = avatar.etag;
+		this.lastModified = avatar.lastModified;
+		this.digest = avatar.digest;
+		this.arena = arena;
+		this.handle = handle;
+	}
+
+	/**
+	 * Serialize avatars held in an arena with their image data
+	 * 
+	 * @return avatar to serialize
+	 * @throws ObjectStreamException
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		if (this.handle == null)
+			return this;
+		return new Avatar(this.id, this.size, this.updateTime,
+				this.handle.read(), this.etag, this.lastModified);
+	}
+
+	/**
+	 * Create a copy of this avatar whose image data is held in arena
+	 * 
+	 * @param arena
+	 * @param handle
+	 * @return avatar
+	 */
+	Avatar store(AvatarSlabArena arena, AvatarSlabArena.Handle handle) {
+		return new Avatar(this, arena, handle);
+	}
+
+	/**
+	 * Is this avatar's image data held in arena?
+	 * 
+	 * @param arena
+	 * @return true if held in arena, false otherwise
+	 */
+	boolean isStoredIn(AvatarSlabArena arena) {
+		return this.handle != null && this.arena == arena;
+	}
+
+	/**
+	 * Create a copy of this avatar that uses the specified identical image
+	 * data instead of its own
+	 * 
+	 * @param shared
+	 * @return avatar
+	 */
+	Avatar share(byte[] shared) {
+		Avatar avatar = new Avatar(this.id, this.size, this.updateTime, shared,
+				this.etag, this.lastModified);
+		avatar.digest = this.digest;
+		return avatar;
+	}
+
+	/**
+	 * Get digest of avatar image data. Avatars with identical image data have
+	 * the same digest.
+	 * 
+	 * @return digest or null if unavailable
+	 */
+	String getDigest() {
+		String current = this.digest;
+		if (current == null) {
+			current = AvatarHasher.digest(getData());
+			this.digest = current;
+		}
+		return current;
 	}
 
 	/**
 	 * @see java.lang.Object#hashCode()
 	 */
 	public int hashCode() {
-		return this.id.hashCode();
+		return 31 * this.id.hashCode() + this.size;
 	}
 
 	/**
@@ -56,22 +253,86 @@ public class Avatar implements Serializable {
 	public boolean equals(Object obj) {
 		if (obj == this)
 			return true;
-		else if (obj instanceof Avatar)
-			return getId().equals(((Avatar) obj).getId());
+		else if (obj instanceof Avatar) {
+			Avatar other = (Avatar) obj;
+			return this.size == other.size && this.id.equals(other.id);
+		}
 		return false;
 	}
 
 	/**
-	 * Get avatar image as byte array
+	 * Get copy of avatar image as byte array. Use {@link #getBuffer()},
+	 * {@link #getInputStream()} or {@link #writeTo(OutputStream)} to access
+	 * the image data without copying it.
 	 * 
 	 * @return non-null byte array
 	 */
 	public byte[] getBytes() {
+		if (this.handle != null)
+			return this.handle.read();
 		byte[] copy = new byte[this.bytes.length];
 		System.arraycopy(this.bytes, 0, copy, 0, copy.length);
 		return copy;
 	}
 
+	/**
+	 * Get read-only view of avatar image data. The image data is not copied,
+	 * image data held in an arena stays valid as long as the returned buffer
+	 * is referenced, even if this avatar no longer is.
+	 * 
+	 * @return non-null read-only buffer positioned at the start of the data
+	 */
+	public ByteBuffer getBuffer() {
+		if (this.handle != null)
+			return this.handle.getBuffer();
+		return ByteBuffer.wrap(this.bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get stream that reads avatar image data without copying it. The stream
+	 * keeps image data held in an arena valid while it is referenced.
+	 * 
+	 * @return non-null input stream
+	 */
+	public InputStream getInputStream() {
+		if (this.handle != null)
+			return new BufferInputStream(this.handle.getBuffer());
+		return new ByteArrayInputStream(this.bytes);
+	}
+
+	/**
+	 * Write avatar image data to output stream without copying it
+	 * 
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		if (this.handle != null)
+			Channels.newChannel(output).write(this.handle.getBuffer());
+		else
+			output.write(this.bytes);
+	}
+
+	/**
+	 * Get avatar image data without copying it. Callers must not modify the
+	 * returned array. Image data held in an arena is copied.
+	 * 
+	 * @return non-null byte array
+	 */
+	byte[] getData() {
+		return this.handle != null ? this.handle.read() : this.bytes;
+	}
+
+	/**
+	 * Get length of avatar image data
+	 * 
+	 * @return number of bytes
+	 */
+	public int getLength() {
+		return this.handle != null ? this.handle.getLength()
+				: this.bytes.length;
+	}
+
 	/**
 	 * @see java.lang.Object#toString()
 	 */
@@ -88,6 +349,15 @@ public class Avatar implements Serializable {
 		return this.id;
 	}
 
+	/**
+	 * Get standard size this avatar variant was requested at
+	 * 
+	 * @return size or 0 for the server's default size
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
 	/**
 	 * Get time avatar was loaded
 	 * 
@@ -97,4 +367,22 @@ public class Avatar implements Serializable {
 		return this.updateTime;
 	}
 
+	/**
+	 * Get entity tag the server sent with this avatar
+	 * 
+	 * @return etag or null if none
+	 */
+	public String getEtag() {
+		return this.etag;
+	}
+
+	/**
+	 * Get last modified time the server sent with this avatar
+	 * 
+	 * @return last modified time or 0 if unknown
+	 */
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
 }
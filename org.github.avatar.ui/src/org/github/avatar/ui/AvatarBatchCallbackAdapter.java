@@ -0,0 +1,26 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *  
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+/**
+ * Base implementation of {@link IAvatarBatchCallback}
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public abstract class AvatarBatchCallbackAdapter extends AvatarCallbackAdapter
+		implements IAvatarBatchCallback {
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarBatchCallback#completed(org.github.avatar.ui.Avatar[])
+	 */
+	public void completed(Avatar[] avatars) {
+		// Does nothing sub-classes should override
+	}
+
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * In-memory avatar cache bounded by the total number of image bytes it holds.
+ * Entries are evicted in least-recently-used order once the budget is
+ * exceeded and are handed back to the caller so they can be moved to a
+ * persistent tier.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarCache {
+
+	/**
+	 * DEFAULT_MAX_BYTES
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private final LinkedHashMap<String, Avatar> entries;
+	private long maxBytes;
+	private long bytes = 0L;
+	private long hits = 0L;
+	private long misses = 0L;
+	private long evictions = 0L;
+
+	/**
+	 * Create cache with default budget
+	 */
+	public AvatarCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Create cache
+	 *
+	 * @param maxBytes
+	 */
+	public AvatarCache(long maxBytes) {
+		setMaxBytes(maxBytes);
+		this.entries = new LinkedHashMap<String, Avatar>(16, 0.75F, true);
+	}
+
+	/**
+	 * Set maximum number of bytes held by this cache. The new budget is
+	 * applied on the next {@link #put(String, Avatar)} or {@link #trim()}.
+	 *
+	 * @param maxBytes
+	 * @return this cache
+	 */
+	public synchronized AvatarCache setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0L, maxBytes);
+		return this;
+	}
+
+	/**
+	 * Get maximum number of bytes held by this cache
+	 *
+	 * @return max bytes
+	 */
+	public synchronized long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * Get number of bytes currently held by this cache
+	 *
+	 * @return byte count
+	 */
+	public synchronized long getByteCount() {
+		return this.bytes;
+	}
+
+	/**
+	 * Get number of avatars currently held by this cache
+	 *
+	 * @return size
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Get number of lookups that found an avatar
+	 *
+	 * @return hit count
+	 */
+	public synchronized long getHitCount() {
+		return this.hits;
+	}
+
+	/**
+	 * Get number of lookups that did not find an avatar
+	 *
+	 * @return miss count
+	 */
+	public synchronized long getMissCount() {
+		return this.misses;
+	}
+
+	/**
+	 * Get number of avatars evicted to stay within budget
+	 *
+	 * @return eviction count
+	 */
+	public synchronized long getEvictionCount() {
+		return this.evictions;
+	}
+
+	/**
+	 * Get avatar and mark it as most recently used
+	 *
+	 * @param key
+	 * @return avatar or null if not cached
+	 */
+	public synchronized Avatar get(String key) {
+		Avatar avatar = this.entries.get(key);
+		if (avatar != null)
+			this.hits++;
+		else
+			this.misses++;
+		return avatar;
+	}
+
+	/**
+	 * Does this cache contain an avatar for the key? This does not affect
+	 * recency or statistics.
+	 *
+	 * @param key
+	 * @return true if contained, false otherwise
+	 */
+	public synchronized boolean contains(String key) {
+		return this.entries.containsKey(key);
+	}
+
+	/**
+	 * Get keys of all cached avatars
+	 *
+	 * @return non-null array of keys
+	 */
+	public synchronized String[] getKeys() {
+		return this.entries.keySet().toArray(new String[this.entries.size()]);
+	}
+
+	/**
+	 * Put avatar in cache and evict least recently used avatars that no longer
+	 * fit in the budget
+	 *
+	 * @param key
+	 * @param avatar
+	 * @return non-null list of evicted avatars
+	 */
+	public synchronized List<Avatar> put(String key, Avatar avatar) {
+		restore(key, avatar);
+		return trim();
+	}
+
+	/**
+	 * Put avatar in cache without applying the budget. Used when restoring a
+	 * persisted store before its persistent tier is available, the budget is
+	 * applied on the next {@link #put(String, Avatar)} or {@link #trim()}.
+	 *
+	 * @param key
+	 * @param avatar
+	 */
+	synchronized void restore(String key, Avatar avatar) {
+		Assert.isNotNull(key, "Key cannot be null"); //$NON-NLS-1$
+		Assert.isNotNull(avatar, "Avatar cannot be null"); //$NON-NLS-1$
+		Avatar previous = this.entries.put(key, avatar);
+		if (previous != null)
+			this.bytes -= previous.getLength();
+		this.bytes += avatar.getLength();
+	}
+
+	/**
+	 * Remove avatar from cache
+	 *
+	 * @param key
+	 * @return removed avatar or null if not cached
+	 */
+	public synchronized Avatar remove(String key) {
+		Avatar removed = this.entries.remove(key);
+		if (removed != null)
+			this.bytes -= removed.getLength();
+		return removed;
+	}
+
+	/**
+	 * Evict least recently used avatars until this cache is within budget.
+	 * The most recently used avatar is always kept even when it alone exceeds
+	 * the budget.
+	 *
+	 * @return non-null list of evicted avatars
+	 */
+	public synchronized List<Avatar> trim() {
+		if (this.bytes <= this.maxBytes)
+			return Collections.emptyList();
+
+		List<Avatar> evicted = new ArrayList<Avatar>();
+		Iterator<Entry<String, Avatar>> iter = this.entries.entrySet()
+				.iterator();
+		while (this.bytes > this.maxBytes && this.entries.size() > 1) {
+			Avatar avatar = iter.next().getValue();
+			iter.remove();
+			this.bytes -= avatar.getLength();
+			this.evictions++;
+			evicted.add(avatar);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Get snapshot of cached avatars by key
+	 *
+	 * @return non-null map
+	 */
+	public synchronized Map<String, Avatar> getAvatars() {
+		return new LinkedHashMap<String, Avatar>(this.entries);
+	}
+}
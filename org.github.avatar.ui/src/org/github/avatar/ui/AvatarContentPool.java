@@ -0,0 +1,100 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of avatar image data keyed by content digest. Many hashes resolve to
+ * the same image, such as the server's default image or identicons, and
+ * interning their avatars keeps a single copy of that image in memory.
+ * <p>
+ * Pooled data is weakly referenced and dropped once no avatar uses it.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+final class AvatarContentPool {
+
+	/**
+	 * Weak reference to pooled data that remembers its digest
+	 */
+	private static class Content extends WeakReference<byte[]> {
+
+		private final String digest;
+
+		private Content(String digest, byte[] data, ReferenceQueue<byte[]> queue) {
+			super(data, queue);
+			this.digest = digest;
+		}
+	}
+
+	private static final Map<String, Content> contents = new HashMap<String, Content>();
+
+	private static final ReferenceQueue<byte[]> cleared = new ReferenceQueue<byte[]>();
+
+	private AvatarContentPool() {
+	}
+
+	/**
+	 * Intern avatar's image data
+	 *
+	 * @param avatar
+	 * @return avatar sharing the data of an identical pooled image, or the
+	 *         given avatar if its data is the first of its kind
+	 */
+	static Avatar intern(Avatar avatar) {
+		String digest = avatar.getDigest();
+		if (digest == null)
+			return avatar;
+		byte[] data = avatar.getData();
+		byte[] pooled;
+		synchronized (contents) {
+			purge();
+			Content content = contents.get(digest);
+			pooled = content != null ? content.get() : null;
+			if (pooled == null) {
+				contents.put(digest, new Content(digest, data, cleared));
+				return avatar;
+			}
+		}
+		if (pooled == data)
+			return avatar;
+		// Never trust the digest alone for what ends up on screen
+		if (!Arrays.equals(pooled, data))
+			return avatar;
+		return avatar.share(pooled);
+	}
+
+	/**
+	 * Get number of distinct images currently pooled
+	 *
+	 * @return size
+	 */
+	static int size() {
+		synchronized (contents) {
+			purge();
+			return contents.size();
+		}
+	}
+
+	/**
+	 * Remove entries whose data has been collected. Must be called while
+	 * holding the pool lock.
+	 */
+	private static void purge() {
+		Content content;
+		while ((content = (Content) cleared.poll()) != null)
+			if (contents.get(content.digest) == content)
+				contents.remove(content.digest);
+	}
+}
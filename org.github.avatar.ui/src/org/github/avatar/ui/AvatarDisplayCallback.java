@@ -35,7 +35,9 @@ public class AvatarDisplayCallback extends AvatarCallbackAdapter {
 	}
 
 	/**
-	 * Set async execution of wrapped callback
+	 * Set async execution of wrapped callback. Asynchronous callbacks are
+	 * batched with other callbacks arriving within a short window and run
+	 * together on the UI-thread.
 	 * 
 	 * @param async
 	 * @return this callback
@@ -48,7 +50,7 @@ public class AvatarDisplayCallback extends AvatarCallbackAdapter {
 	private void displayExec(Runnable runnable) {
 		Display display = PlatformUI.getWorkbench().getDisplay();
 		if (this.async)
-			display.asyncExec(runnable);
+			AvatarDisplayDispatcher.getDispatcher(display).post(runnable);
 		else
 			display.syncExec(runnable);
 	}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Dispatcher that coalesces runnables posted from any thread into a single
+ * runnable on the display's thread.
+ * <p>
+ * Runnables posted within a short window are run together in posting order.
+ * Runnables posted while a batch is running are run as part of that same
+ * batch, which lets callers post a single follow-up action, such as one
+ * viewer update, for everything that happened in the batch.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarDisplayDispatcher {
+
+	/**
+	 * Window in milliseconds that posted runnables are collected for
+	 */
+	public static final int DEFAULT_DELAY = 50;
+
+	private static final Map<Display, AvatarDisplayDispatcher> dispatchers = new HashMap<Display, AvatarDisplayDispatcher>();
+
+	/**
+	 * Get dispatcher for display
+	 *
+	 * @param display
+	 * @return non-null dispatcher
+	 */
+	public static AvatarDisplayDispatcher getDispatcher(final Display display) {
+		Assert.isNotNull(display, "Display cannot be null"); //$NON-NLS-1$
+		synchronized (dispatchers) {
+			AvatarDisplayDispatcher dispatcher = dispatchers.get(display);
+			if (dispatcher == null) {
+				dispatcher = new AvatarDisplayDispatcher(display);
+				dispatchers.put(display, dispatcher);
+				display.disposeExec(new Runnable() {
+
+					public void run() {
+						synchronized (dispatchers) {
+							dispatchers.remove(display);
+						}
+					}
+				});
+			}
+			return dispatcher;
+		}
+	}
+
+	private final Display display;
+	private final List<Runnable> queue = new ArrayList<Runnable>();
+	private boolean scheduled = false;
+
+	private final Runnable drain = new Runnable() {
+
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable schedule = new Runnable() {
+
+		public void run() {
+			if (!display.isDisposed())
+				display.timerExec(DEFAULT_DELAY, drain);
+		}
+	};
+
+	private AvatarDisplayDispatcher(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * Post runnable to be run on the display's thread with the next batch
+	 *
+	 * @param runnable
+	 * @return this dispatcher
+	 */
+	public AvatarDisplayDispatcher post(Runnable runnable) {
+		Assert.isNotNull(runnable, "Runnable cannot be null"); //$NON-NLS-1$
+		synchronized (this.queue) {
+			this.queue.add(runnable);
+			if (this.scheduled)
+				return this;
+			this.scheduled = true;
+		}
+		if (!this.display.isDisposed())
+			this.display.asyncExec(this.schedule);
+		return this;
+	}
+
+	private void drain() {
+		RuntimeException failure = null;
+		while (true) {
+			Runnable[] batch;
+			synchronized (this.queue) {
+				if (this.queue.isEmpty()) {
+					this.scheduled = false;
+					break;
+				}
+				batch = this.queue.toArray(new Runnable[this.queue.size()]);
+				this.queue.clear();
+			}
+			for (Runnable runnable : batch)
+				try {
+					runnable.run();
+				} catch (RuntimeException e) {
+					// Run the rest of the batch and rethrow afterwards so the
+					// display still reports the failure
+					if (failure == null)
+						failure = e;
+				}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,461 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * Scheduler that runs avatar fetches in parallel using a bounded number of
+ * worker jobs. Parallelism is limited both overall and per host so that a
+ * large number of queued fetches never floods a single server.
+ * <p>
+ * Queued fetches run in priority order. Interactive fetches run most recent
+ * first since they are for what is on screen now, all others run in the order
+ * they were scheduled.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarFetchScheduler {
+
+	/**
+	 * DEFAULT_MAX_CONCURRENT
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT = 8;
+
+	/**
+	 * DEFAULT_MAX_PER_HOST
+	 */
+	public static final int DEFAULT_MAX_PER_HOST = 4;
+
+	private static AvatarFetchScheduler defaultScheduler;
+
+	/**
+	 * Get default scheduler shared by all avatar stores
+	 *
+	 * @return non-null scheduler
+	 */
+	public static synchronized AvatarFetchScheduler getDefault() {
+		if (defaultScheduler == null)
+			defaultScheduler = new AvatarFetchScheduler();
+		return defaultScheduler;
+	}
+
+	/**
+	 * Queued fetch
+	 */
+	private static class Fetch {
+
+		private final Host host;
+		private final String name;
+		private final Runnable runnable;
+		private final int priority;
+		private final long sequence;
+		private boolean queued = true;
+
+		private Fetch(Host host, String name, Runnable runnable, int priority,
+				long sequence) {
+			this.host = host;
+			this.name = name;
+			this.runnable = runnable;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Should this fetch run before the other fetch?
+		 */
+		private boolean precedes(Fetch other) {
+			if (other == null)
+				return true;
+			if (this.priority != other.priority)
+				return this.priority > other.priority;
+			if (this.priority == IAvatarRequest.PRIORITY_INTERACTIVE)
+				return this.sequence > other.sequence;
+			return this.sequence < other.sequence;
+		}
+	}
+
+	/**
+	 * Fetches queued and running against a single host. Every priority has
+	 * its own queue, interactive fetches are added to the front and all others
+	 * to the back. Removed fetches are left in their queue and skipped once
+	 * they reach its front.
+	 */
+	private static class Host {
+
+		private final String name;
+		private final List<ArrayDeque<Fetch>> queues = new ArrayList<ArrayDeque<Fetch>>();
+		private int queued = 0;
+		private int skipped = 0;
+		private int running = 0;
+
+		private Host(String name) {
+			this.name = name;
+			for (int i = 0; i <= IAvatarRequest.PRIORITY_INTERACTIVE; i++)
+				this.queues.add(new ArrayDeque<Fetch>());
+		}
+
+		private void add(Fetch fetch) {
+			ArrayDeque<Fetch> queue = this.queues.get(fetch.priority);
+			if (fetch.priority == IAvatarRequest.PRIORITY_INTERACTIVE)
+				queue.addFirst(fetch);
+			else
+				queue.addLast(fetch);
+			this.queued++;
+		}
+
+		/**
+		 * Get the queued fetch of this host that should run next
+		 *
+		 * @return fetch or null if none queued
+		 */
+		private Fetch peek() {
+			for (int i = this.queues.size() - 1; i >= 0; i--) {
+				ArrayDeque<Fetch> queue = this.queues.get(i);
+				Fetch fetch;
+				while ((fetch = queue.peekFirst()) != null && !fetch.queued) {
+					queue.pollFirst();
+					this.skipped--;
+				}
+				if (fetch != null)
+					return fetch;
+			}
+			return null;
+		}
+
+		private void remove(Fetch fetch) {
+			fetch.queued = false;
+			this.queued--;
+			this.skipped++;
+			// Drop removed fetches once they outnumber the queued ones
+			if (this.skipped > this.queued)
+				compact();
+		}
+
+		private void compact() {
+			for (ArrayDeque<Fetch> queue : this.queues) {
+				Iterator<Fetch> iter = queue.iterator();
+				while (iter.hasNext())
+					if (!iter.next().queued)
+						iter.remove();
+			}
+			this.skipped = 0;
+		}
+	}
+
+	/**
+	 * Worker job that runs queued fetches until none are available
+	 */
+	private class Worker extends Job {
+
+		private Worker() {
+			super(Messages.AvatarFetchScheduler_JobName);
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			IStatus status = Status.OK_STATUS;
+			Fetch fetch;
+			while ((fetch = next()) != null)
+				try {
+					if (fetch.name != null)
+						monitor.subTask(fetch.name);
+					fetch.runnable.run();
+				} catch (RuntimeException e) {
+					// Keep draining the queue, a single failure shouldn't
+					// strand the remaining fetches
+					status = AvatarPlugin.createErrorStatus(e.getMessage(), e);
+				} finally {
+					finished(fetch);
+				}
+			return status;
+		}
+	}
+
+	private final Object lock = new Object();
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+	private final Map<Runnable, Fetch> fetches = new HashMap<Runnable, Fetch>();
+	private final Set<Host> ready = new LinkedHashSet<Host>();
+	private int maxConcurrent;
+	private int maxPerHost;
+	private int workers = 0;
+	private int running = 0;
+	private long sequence = 0L;
+
+	/**
+	 * Create fetch scheduler with default limits
+	 */
+	public AvatarFetchScheduler() {
+		this(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_PER_HOST);
+	}
+
+	/**
+	 * Create fetch scheduler
+	 *
+	 * @param maxConcurrent
+	 * @param maxPerHost
+	 */
+	public AvatarFetchScheduler(int maxConcurrent, int maxPerHost) {
+		setMaxConcurrent(maxConcurrent);
+		setMaxPerHost(maxPerHost);
+	}
+
+	/**
+	 * Set maximum number of fetches that run at the same time
+	 *
+	 * @param maxConcurrent
+	 * @return this scheduler
+	 */
+	public AvatarFetchScheduler setMaxConcurrent(int maxConcurrent) {
+		synchronized (this.lock) {
+			this.maxConcurrent = Math.max(1, maxConcurrent);
+			startWorkers();
+		}
+		return this;
+	}
+
+	/**
+	 * Set maximum number of fetches that run at the same time against a
+	 * single host
+	 *
+	 * @param maxPerHost
+	 * @return this scheduler
+	 */
+	public AvatarFetchScheduler setMaxPerHost(int maxPerHost) {
+		synchronized (this.lock) {
+			this.maxPerHost = Math.max(1, maxPerHost);
+			for (Host host : new ArrayList<Host>(this.hosts.values()))
+				updateReady(host);
+			startWorkers();
+		}
+		return this;
+	}
+
+	/**
+	 * Get maximum number of concurrent fetches
+	 *
+	 * @return maximum concurrent
+	 */
+	public int getMaxConcurrent() {
+		return this.maxConcurrent;
+	}
+
+	/**
+	 * Get maximum number of concurrent fetches per host
+	 *
+	 * @return maximum per host
+	 */
+	public int getMaxPerHost() {
+		return this.maxPerHost;
+	}
+
+	/**
+	 * Get number of fetches queued and not yet running
+	 *
+	 * @return queued count
+	 */
+	public int getQueuedCount() {
+		synchronized (this.lock) {
+			int count = 0;
+			for (Host host : this.hosts.values())
+				count += host.queued;
+			return count;
+		}
+	}
+
+	/**
+	 * Schedule fetch against host with normal priority
+	 *
+	 * @param host
+	 * @param name
+	 *            displayed while the fetch runs, may be null
+	 * @param fetch
+	 * @return this scheduler
+	 */
+	public AvatarFetchScheduler schedule(String host, String name,
+			Runnable fetch) {
+		return schedule(host, name, IAvatarRequest.PRIORITY_NORMAL, fetch);
+	}
+
+	/**
+	 * Schedule fetch against host
+	 *
+	 * @param host
+	 * @param name
+	 *            displayed while the fetch runs, may be null
+	 * @param priority
+	 *            one of the {@link IAvatarRequest} priorities
+	 * @param fetch
+	 * @return this scheduler
+	 */
+	public AvatarFetchScheduler schedule(String host, String name,
+			int priority, Runnable fetch) {
+		Assert.isNotNull(fetch, "Fetch cannot be null"); //$NON-NLS-1$
+		if (host == null)
+			host = ""; //$NON-NLS-1$
+		synchronized (this.lock) {
+			Host queue = this.hosts.get(host);
+			if (queue == null) {
+				queue = new Host(host);
+				this.hosts.put(host, queue);
+			}
+			enqueue(new Fetch(queue, name, fetch, getLevel(priority),
+					this.sequence++));
+			startWorkers();
+		}
+		return this;
+	}
+
+	private static int getLevel(int priority) {
+		return Math.max(IAvatarRequest.PRIORITY_BACKGROUND,
+				Math.min(IAvatarRequest.PRIORITY_INTERACTIVE, priority));
+	}
+
+	/**
+	 * Add fetch to the queue of its host. Must be called while holding the
+	 * lock.
+	 *
+	 * @param fetch
+	 */
+	private void enqueue(Fetch fetch) {
+		fetch.host.add(fetch);
+		this.fetches.put(fetch.runnable, fetch);
+		updateReady(fetch.host);
+	}
+
+	/**
+	 * Remove fetch from the queue of its host. Must be called while holding
+	 * the lock.
+	 *
+	 * @param fetch
+	 */
+	private void dequeue(Fetch fetch) {
+		fetch.host.remove(fetch);
+		if (this.fetches.get(fetch.runnable) == fetch)
+			this.fetches.remove(fetch.runnable);
+		updateReady(fetch.host);
+	}
+
+	/**
+	 * Track whether host has queued fetches and is below its limit so picking
+	 * the next fetch only looks at hosts that can run one. Hosts with nothing
+	 * queued or running are dropped. Must be called while holding the lock.
+	 *
+	 * @param host
+	 */
+	private void updateReady(Host host) {
+		if (host.queued > 0 && host.running < this.maxPerHost)
+			this.ready.add(host);
+		else
+			this.ready.remove(host);
+		if (host.queued == 0 && host.running == 0)
+			this.hosts.remove(host.name);
+	}
+
+	/**
+	 * Cancel fetch that has not started running yet
+	 *
+	 * @param fetch
+	 * @return true if removed from the queue, false if not queued
+	 */
+	public boolean cancel(Runnable fetch) {
+		synchronized (this.lock) {
+			Fetch queued = this.fetches.get(fetch);
+			if (queued == null)
+				return false;
+			dequeue(queued);
+			return true;
+		}
+	}
+
+	/**
+	 * Change priority of fetch that has not started running yet. The fetch is
+	 * queued again as if it was just scheduled with the new priority.
+	 *
+	 * @param fetch
+	 * @param priority
+	 * @return true if queued, false otherwise
+	 */
+	public boolean setPriority(Runnable fetch, int priority) {
+		synchronized (this.lock) {
+			Fetch queued = this.fetches.get(fetch);
+			if (queued == null)
+				return false;
+			int level = getLevel(priority);
+			if (level != queued.priority) {
+				// Enqueue first so the host is never dropped in between
+				enqueue(new Fetch(queued.host, queued.name, fetch, level,
+						this.sequence++));
+				dequeue(queued);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Start workers for queued fetches that can run under the per-host limit,
+	 * up to the concurrency limit. Workers that have been started but are not
+	 * running a fetch yet will pick up one of them. Must be called while
+	 * holding the lock.
+	 */
+	private void startWorkers() {
+		int runnable = 0;
+		for (Host host : this.ready)
+			runnable += Math.min(host.queued, this.maxPerHost - host.running);
+		int idle = this.workers - this.running;
+		int needed = Math.min(runnable - idle, this.maxConcurrent
+				- this.workers);
+		for (int i = 0; i < needed; i++) {
+			this.workers++;
+			new Worker().schedule();
+		}
+	}
+
+	private Fetch next() {
+		synchronized (this.lock) {
+			if (this.workers <= this.maxConcurrent) {
+				Fetch next = null;
+				for (Host host : this.ready) {
+					Fetch fetch = host.peek();
+					if (fetch.precedes(next))
+						next = fetch;
+				}
+				if (next != null) {
+					next.host.running++;
+					this.running++;
+					dequeue(next);
+					return next;
+				}
+			}
+			this.workers--;
+			return null;
+		}
+	}
+
+	private void finished(Fetch fetch) {
+		synchronized (this.lock) {
+			fetch.host.running--;
+			this.running--;
+			updateReady(fetch.host);
+			startWorkers();
+		}
+	}
+}
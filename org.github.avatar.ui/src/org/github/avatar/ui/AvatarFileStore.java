@@ -10,40 +10,238 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
 
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.osgi.framework.Bundle;
 
 /**
+ * Persistent avatar store backed by an append-only data file of avatar records
+ * and an index file mapping each hash to the offset of its image data.
+ * <p>
+ * Loading only reads the index, image data is read lazily through a
+ * memory-mapped view of the data file when an avatar is requested.
+ * <p>
+ * Written avatars are queued and appended in batches by a background job.
+ * Every batch is forced to disk before the index is atomically replaced, and
+ * records carry a checksum so that records appended after the last index
+ * write are recovered, and a torn tail is discarded, on the next load. The
+ * data file is compacted once most of it is taken up by superseded records.
+ * The data file is mapped as a whole, avatars that would grow it beyond
+ * {@link #MAX_DATA_LENGTH} are not written.
+ * <p>
+ * Image data is stored once per distinct content. Avatars whose image data is
+ * identical to a record already in the data file are written as reference
+ * records that point at that record's image data.
+ *
  * @author Kevin Sawicki (kevin@github.com)
  */
-public class AvatarFileStore {
+public class AvatarFileStore implements IAvatarArchive {
 
 	/**
 	 * STORE_NAME
 	 */
-	public static final String DEFAULT_STORE_NAME = "avatars.ser"; //$NON-NLS-1$
+	public static final String DEFAULT_STORE_NAME = "avatars.dat"; //$NON-NLS-1$
+
+	/**
+	 * INDEX_SUFFIX
+	 */
+	public static final String INDEX_SUFFIX = ".idx"; //$NON-NLS-1$
+
+	/**
+	 * LEGACY_STORE_NAME
+	 */
+	public static final String LEGACY_STORE_NAME = "avatars.ser"; //$NON-NLS-1$
+
+	/**
+	 * VERSION
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Delay in milliseconds before queued avatars are written
+	 */
+	public static final long FLUSH_DELAY = 5000L;
+
+	/**
+	 * Number of queued bytes that causes queued avatars to be written
+	 * immediately
+	 */
+	public static final long FLUSH_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * Minimum data file length before it is considered for compaction
+	 */
+	public static final long COMPACT_MIN_LENGTH = 1024 * 1024;
+
+	/**
+	 * Maximum data file length, the largest file that can be mapped
+	 */
+	public static final long MAX_DATA_LENGTH = Integer.MAX_VALUE;
+
+	private static final String TEMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+	/**
+	 * Marker written at the start of the data file
+	 */
+	private static final int DATA_MAGIC = 0x41564454;
+
+	/**
+	 * Length of data file header: magic, version and generation
+	 */
+	private static final int DATA_HEADER_LENGTH = 16;
+
+	/**
+	 * Marker written at the start of every index file
+	 */
+	private static final int INDEX_MAGIC = 0x41564958;
+
+	/**
+	 * Marker written at the start of every avatar record in the data file
+	 */
+	private static final int RECORD_MAGIC = 0x41565244;
+
+	/**
+	 * Marker written at the start of every avatar record that references the
+	 * image data of an earlier record
+	 */
+	private static final int REFERENCE_MAGIC = 0x41565246;
+
+	/**
+	 * Location and metadata of an avatar record
+	 */
+	private static class IndexEntry {
 
-	private File file;
+		private final long offset;
+		private final int length;
+		private final int recordLength;
+		private final int checksum;
+		private final long updateTime;
+		private final long lastModified;
+		private final String etag;
+
+		private IndexEntry(long offset, int length, int recordLength,
+				int checksum, long updateTime, long lastModified, String etag) {
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+			this.checksum = checksum;
+			this.updateTime = updateTime;
+			this.lastModified = lastModified;
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * Stream that counts the bytes read through it
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0L;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int read = super.read();
+			if (read != -1)
+				this.count++;
+			return read;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read != -1)
+				this.count += read;
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			this.count += skipped;
+			return skipped;
+		}
+	}
+
+	private final File file;
+	private final File indexFile;
+	private final File legacyFile;
+	private final Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+	private final Map<String, Avatar> pending = new LinkedHashMap<String, Avatar>();
+	private final Map<Long, Long> payloads = new HashMap<Long, Long>();
+	private final Map<Long, Integer> references = new HashMap<Long, Integer>();
+	private final Object writeLock = new Object();
+	private final Job flushJob;
+	private long pendingBytes = 0L;
+	private boolean flushScheduled = false;
+	private boolean opened = false;
+	private String url = AvatarStore.URL;
+	private long refreshTime = 0L;
+	private long generation = 0L;
+	private long dataLength = DATA_HEADER_LENGTH;
+	private long liveBytes = 0L;
+	private RandomAccessFile data;
+	private MappedByteBuffer mapped;
 
 	/**
 	 * Create avatar file store
-	 * 
+	 *
 	 * @param file
 	 */
 	public AvatarFileStore(File file) {
+		Assert.isNotNull(file, "File cannot be null"); //$NON-NLS-1$
 		this.file = file;
+		this.indexFile = new File(file.getPath() + INDEX_SUFFIX);
+		this.legacyFile = new File(file.getParentFile(), LEGACY_STORE_NAME);
+		this.flushJob = new Job(Messages.AvatarFileStore_SaveJobName) {
+
+			protected IStatus run(IProgressMonitor monitor) {
+				try {
+					flush();
+				} catch (IOException e) {
+					return AvatarPlugin.createErrorStatus(
+							Messages.AvatarPlugin_ExceptionSavingStore, e);
+				}
+				return Status.OK_STATUS;
+			}
+		};
+		this.flushJob.setSystem(true);
+		this.flushJob.setPriority(Job.DECORATE);
 	}
 
 	/**
 	 * Create avatar file store in bundle state location with default name
-	 * 
+	 *
 	 * @param bundle
 	 */
 	public AvatarFileStore(Bundle bundle) {
@@ -52,20 +250,47 @@ public class AvatarFileStore {
 	}
 
 	/**
-	 * Load avatars
-	 * 
-	 * @return store
+	 * Load avatars. Only the index is read, the returned store reads avatar
+	 * image data lazily from this file store.
+	 *
+	 * @return store or null if nothing has been saved
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
 	public AvatarStore load() throws IOException, ClassNotFoundException {
-		if (!file.exists())
+		if (!this.file.exists())
+			return loadLegacy();
+
+		AvatarStore store;
+		synchronized (this.writeLock) {
+			open();
+			synchronized (this) {
+				store = new AvatarStore(this.url);
+				store.setRefreshTime(this.refreshTime);
+			}
+		}
+		return store.setArchive(this);
+	}
+
+	/**
+	 * Load store saved with Java serialization by earlier versions and queue
+	 * its avatars to be written to this file store
+	 *
+	 * @return store or null if no legacy store exists
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private AvatarStore loadLegacy() throws IOException,
+			ClassNotFoundException {
+		if (!this.legacyFile.exists())
 			return null;
 
+		AvatarStore store;
 		ObjectInputStream stream = null;
 		try {
-			stream = new ObjectInputStream(new FileInputStream(file));
-			return (AvatarStore) stream.readObject();
+			stream = new ObjectInputStream(new FileInputStream(
+					this.legacyFile));
+			store = (AvatarStore) stream.readObject();
 		} finally {
 			if (stream != null)
 				try {
@@ -73,20 +298,141 @@ public class AvatarFileStore {
 				} catch (IOException ignore) {
 				}
 		}
+		synchronized (this) {
+			this.url = store.getUrl();
+			this.refreshTime = store.getRefreshTime();
+		}
+		for (Avatar avatar : store.getCache().getAvatars().values())
+			write(avatar);
+		return store.setArchive(this);
 	}
 
 	/**
-	 * Save avatars
-	 * 
-	 * @param avatars
-	 * @return this file store
+	 * Open data file, read the index and recover records appended after the
+	 * index was last written. Must be called while holding the write lock.
+	 *
 	 * @throws IOException
 	 */
-	public AvatarFileStore save(AvatarStore avatars) throws IOException {
-		ObjectOutputStream stream = null;
+	private void open() throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			channel = getChannel();
+		}
+		if (!readDataHeader(channel)) {
+			reset(channel);
+			return;
+		}
+
+		long start = DATA_HEADER_LENGTH;
+		if (this.indexFile.exists())
+			try {
+				start = readIndex(channel.size());
+			} catch (IOException e) {
+				// Rebuild the index from the data file
+				synchronized (this) {
+					clearIndex();
+				}
+				start = DATA_HEADER_LENGTH;
+			}
+		if (recover(channel, start))
+			writeIndex();
+		synchronized (this) {
+			this.opened = true;
+		}
+	}
+
+	private boolean readDataHeader(FileChannel channel) throws IOException {
+		if (channel.size() < DATA_HEADER_LENGTH)
+			return false;
+		ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_LENGTH);
+		while (header.hasRemaining())
+			if (channel.read(header, header.position()) == -1)
+				return false;
+		header.flip();
+		if (header.getInt() != DATA_MAGIC)
+			return false;
+		if (header.getInt() != VERSION)
+			return false;
+		long current = header.getLong();
+		synchronized (this) {
+			this.generation = current;
+		}
+		return true;
+	}
+
+	/**
+	 * Discard data file contents and start a new generation
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void reset(FileChannel channel) throws IOException {
+		long newGeneration = System.currentTimeMillis();
+		channel.truncate(0);
+		channel.write(createDataHeader(newGeneration), 0);
+		channel.force(true);
+		synchronized (this) {
+			this.mapped = null;
+			clearIndex();
+			this.generation = newGeneration;
+			this.dataLength = DATA_HEADER_LENGTH;
+			this.opened = true;
+		}
+		writeIndex();
+	}
+
+	private static ByteBuffer createDataHeader(long generation) {
+		ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_LENGTH);
+		header.putInt(DATA_MAGIC).putInt(VERSION).putLong(generation);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Read index file
+	 *
+	 * @param size
+	 *            of data file
+	 * @return length of the data file covered by the index
+	 * @throws IOException
+	 */
+	private long readIndex(long size) throws IOException {
+		DataInputStream stream = null;
 		try {
-			stream = new ObjectOutputStream(new FileOutputStream(file));
-			stream.writeObject(avatars);
+			stream = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(this.indexFile)));
+			if (stream.readInt() != INDEX_MAGIC)
+				throw new IOException(this.indexFile.getAbsolutePath());
+			if (stream.readInt() != VERSION)
+				throw new IOException(this.indexFile.getAbsolutePath());
+			synchronized (this) {
+				if (stream.readLong() != this.generation)
+					throw new IOException(this.indexFile.getAbsolutePath());
+				this.url = stream.readUTF();
+				this.refreshTime = stream.readLong();
+				long length = stream.readLong();
+				if (length < DATA_HEADER_LENGTH || length > size)
+					throw new IOException(this.file.getAbsolutePath());
+				int count = stream.readInt();
+				clearIndex();
+				for (int i = 0; i < count; i++) {
+					String hash = stream.readUTF();
+					long offset = stream.readLong();
+					int entryLength = stream.readInt();
+					int recordLength = stream.readInt();
+					int checksum = stream.readInt();
+					long updateTime = stream.readLong();
+					long lastModified = stream.readLong();
+					String etag = stream.readBoolean() ? stream.readUTF()
+							: null;
+					putEntry(hash, new IndexEntry(offset, entryLength,
+							recordLength, checksum, updateTime, lastModified,
+							etag));
+				}
+				indexPayloads();
+				this.dataLength = length;
+				return length;
+			}
 		} finally {
 			if (stream != null)
 				try {
@@ -94,7 +440,708 @@ public class AvatarFileStore {
 				} catch (IOException ignore) {
 				}
 		}
+	}
+
+	/**
+	 * Scan records appended after the specified position, adding valid ones
+	 * to the index and truncating the data file at the first invalid record
+	 *
+	 * @param channel
+	 * @param start
+	 * @return true if the index or data file changed, false otherwise
+	 * @throws IOException
+	 */
+	private boolean recover(FileChannel channel, long start) throws IOException {
+		long size = channel.size();
+		long position = start;
+		int recovered = 0;
+		CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(Channels.newInputStream(channel
+						.position(start))));
+		DataInputStream stream = new DataInputStream(counter);
+		CRC32 crc = new CRC32();
+		while (position < size)
+			try {
+				int magic = stream.readInt();
+				if (magic != RECORD_MAGIC && magic != REFERENCE_MAGIC)
+					break;
+				String hash = stream.readUTF();
+				long updateTime = stream.readLong();
+				long lastModified = stream.readLong();
+				String etag = stream.readBoolean() ? stream.readUTF() : null;
+				int length = stream.readInt();
+				int checksum = stream.readInt();
+				if (length < 0)
+					break;
+				IndexEntry entry;
+				long end;
+				if (magic == REFERENCE_MAGIC) {
+					// Referenced image data must precede the reference
+					long offset = stream.readLong();
+					if (offset < DATA_HEADER_LENGTH
+							|| offset + length > position
+							|| read(channel, offset, length, crc) != checksum)
+						break;
+					end = start + counter.count;
+					entry = new IndexEntry(offset, length,
+							(int) (end - position) + length, checksum,
+							updateTime, lastModified, etag);
+				} else {
+					long offset = start + counter.count;
+					if (offset + length > size)
+						break;
+					byte[] bytes = new byte[length];
+					stream.readFully(bytes);
+					crc.reset();
+					crc.update(bytes);
+					if ((int) crc.getValue() != checksum)
+						break;
+					end = offset + length;
+					entry = new IndexEntry(offset, length,
+							(int) (end - position), checksum, updateTime,
+							lastModified, etag);
+				}
+				synchronized (this) {
+					putEntry(hash, entry);
+					this.payloads.put(getContentKey(checksum, length),
+							Long.valueOf(entry.offset));
+				}
+				position = end;
+				recovered++;
+			} catch (IOException e) {
+				break;
+			}
+
+		boolean truncated = position < size;
+		if (truncated) {
+			channel.truncate(position);
+			channel.force(true);
+		}
+		synchronized (this) {
+			this.mapped = null;
+			this.dataLength = position;
+		}
+		return truncated || recovered > 0;
+	}
+
+	/**
+	 * Get key avatar records are written under, sized variants of an avatar
+	 * are kept apart
+	 *
+	 * @param avatar
+	 * @return key
+	 */
+	private static String getKey(Avatar avatar) {
+		return AvatarStore.getVariantKey(avatar);
+	}
+
+	/**
+	 * Read data at position without moving the channel's position
+	 *
+	 * @param channel
+	 * @param position
+	 * @param length
+	 * @param crc
+	 * @return checksum of the data read
+	 * @throws IOException
+	 */
+	private static int read(FileChannel channel, long position, int length,
+			CRC32 crc) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) == -1)
+				throw new IOException();
+		crc.reset();
+		crc.update(buffer.array(), 0, length);
+		return (int) crc.getValue();
+	}
+
+	private static Long getContentKey(int checksum, int length) {
+		return Long.valueOf(((long) checksum << 32) | (length & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Clear the index and the maps derived from it. Must be called while
+	 * holding the lock on this file store.
+	 */
+	private void clearIndex() {
+		this.index.clear();
+		this.payloads.clear();
+		this.references.clear();
+		this.liveBytes = 0L;
+	}
+
+	/**
+	 * Index entry of avatar, keeping count of the bytes of the data file that
+	 * are still referenced. Image data shared by several entries only counts
+	 * once. Must be called while holding the lock on this file store.
+	 *
+	 * @param hash
+	 * @param entry
+	 */
+	private void putEntry(String hash, IndexEntry entry) {
+		IndexEntry previous = this.index.put(hash, entry);
+		if (previous != null) {
+			this.liveBytes -= previous.recordLength - previous.length;
+			Long offset = Long.valueOf(previous.offset);
+			int count = this.references.get(offset).intValue();
+			if (count > 1)
+				this.references.put(offset, Integer.valueOf(count - 1));
+			else {
+				this.references.remove(offset);
+				this.liveBytes -= previous.length;
+			}
+		}
+		this.liveBytes += entry.recordLength - entry.length;
+		Long offset = Long.valueOf(entry.offset);
+		Integer count = this.references.get(offset);
+		if (count == null)
+			this.liveBytes += entry.length;
+		this.references.put(offset,
+				Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+	}
+
+	/**
+	 * Rebuild the map of content to image data offsets from the index. Must
+	 * be called while holding the lock on this file store.
+	 */
+	private void indexPayloads() {
+		this.payloads.clear();
+		for (IndexEntry entry : this.index.values())
+			this.payloads.put(getContentKey(entry.checksum, entry.length),
+					Long.valueOf(entry.offset));
+	}
+
+	/**
+	 * Find image data already in the data file that is identical to the
+	 * avatar's
+	 *
+	 * @param avatar
+	 * @param key
+	 * @return offset or -1 if none
+	 * @throws IOException
+	 */
+	private long findPayload(Avatar avatar, Long key) throws IOException {
+		ByteBuffer payload;
+		long offset;
+		synchronized (this) {
+			Long found = this.payloads.get(key);
+			if (found == null)
+				return -1L;
+			offset = found.longValue();
+			payload = map(offset + avatar.getLength()).duplicate();
+		}
+		// Checksums can collide, only share data that is identical
+		payload.limit((int) offset + avatar.getLength());
+		payload.position((int) offset);
+		return payload.equals(avatar.getBuffer()) ? offset : -1L;
+	}
+
+	/**
+	 * Save avatars. Queued avatars and avatars held in memory that are not
+	 * yet in the data file are written and the index is replaced.
+	 *
+	 * @param avatars
+	 * @return this file store
+	 * @throws IOException
+	 */
+	public AvatarFileStore save(AvatarStore avatars) throws IOException {
+		synchronized (this) {
+			this.url = avatars.getUrl();
+			this.refreshTime = avatars.getRefreshTime();
+		}
+		for (Avatar avatar : avatars.getCache().getAvatars().values())
+			write(avatar);
+		synchronized (this.writeLock) {
+			flush();
+			writeIndex();
+		}
+		if (this.legacyFile.exists())
+			this.legacyFile.delete();
+		return this;
+	}
+
+	/**
+	 * Write queued avatars to the data file and replace the index
+	 *
+	 * @return this file store
+	 * @throws IOException
+	 */
+	public AvatarFileStore flush() throws IOException {
+		synchronized (this.writeLock) {
+			if (!isOpen())
+				open();
+
+			List<Avatar> batch;
+			FileChannel channel;
+			long start;
+			synchronized (this) {
+				this.flushScheduled = false;
+				if (this.pending.isEmpty())
+					return this;
+				batch = new ArrayList<Avatar>(this.pending.values());
+				channel = getChannel();
+				start = this.dataLength;
+			}
+
+			// Reclaim superseded records before giving up on avatars that
+			// would grow the data file beyond what can be mapped
+			long batchBytes = 0L;
+			for (Avatar avatar : batch)
+				batchBytes += avatar.getLength();
+			if (start + batchBytes > MAX_DATA_LENGTH && isCompactible()) {
+				compact();
+				synchronized (this) {
+					channel = getChannel();
+					start = this.dataLength;
+				}
+			}
+
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(
+					batch.size() * 2);
+			List<Avatar> accepted = new ArrayList<Avatar>(batch.size());
+			List<IndexEntry> entries = new ArrayList<IndexEntry>(batch.size());
+			Map<Long, Avatar> written = new HashMap<Long, Avatar>();
+			Map<Long, Long> offsets = new HashMap<Long, Long>();
+			CRC32 crc = new CRC32();
+			long position = start;
+			for (Avatar avatar : batch) {
+				int length = avatar.getLength();
+				crc.reset();
+				crc.update(avatar.getData(), 0, length);
+				int checksum = (int) crc.getValue();
+				Long key = getContentKey(checksum, length);
+				long shared = -1L;
+				Avatar first = written.get(key);
+				if (first != null
+						&& first.getBuffer().equals(avatar.getBuffer()))
+					shared = offsets.get(key).longValue();
+				else if (first == null)
+					shared = findPayload(avatar, key);
+
+				byte[] header;
+				long offset;
+				if (shared != -1L) {
+					header = createRecordHeader(REFERENCE_MAGIC,
+							getKey(avatar), avatar.getUpdateTime(),
+							avatar.getLastModified(), avatar.getEtag(),
+							length, checksum, shared);
+					// Discarded, loaded from the server again when requested
+					if (position + header.length > MAX_DATA_LENGTH)
+						continue;
+					buffers.add(ByteBuffer.wrap(header));
+					offset = shared;
+					position += header.length;
+				} else {
+					header = createRecordHeader(RECORD_MAGIC, getKey(avatar),
+							avatar.getUpdateTime(), avatar.getLastModified(),
+							avatar.getEtag(), length, checksum, -1L);
+					if (position + header.length + length > MAX_DATA_LENGTH)
+						continue;
+					buffers.add(ByteBuffer.wrap(header));
+					buffers.add(avatar.getBuffer());
+					offset = position + header.length;
+					position += header.length + length;
+					if (first == null) {
+						written.put(key, avatar);
+						offsets.put(key, Long.valueOf(offset));
+					}
+				}
+				accepted.add(avatar);
+				entries.add(new IndexEntry(offset, length, header.length
+						+ length, checksum, avatar.getUpdateTime(),
+						avatar.getLastModified(), avatar.getEtag()));
+			}
+			if (!buffers.isEmpty()) {
+				write(channel, start, buffers.toArray(new ByteBuffer[buffers
+						.size()]));
+				channel.force(false);
+			}
+
+			synchronized (this) {
+				this.dataLength = position;
+				this.payloads.putAll(offsets);
+				for (int i = 0; i < accepted.size(); i++)
+					putEntry(getKey(accepted.get(i)), entries.get(i));
+				for (Avatar avatar : batch)
+					if (this.pending.get(getKey(avatar)) == avatar) {
+						this.pending.remove(getKey(avatar));
+						this.pendingBytes -= avatar.getLength();
+					}
+			}
+			if (accepted.isEmpty())
+				return this;
+			writeIndex();
+			if (isCompactionNeeded())
+				compact();
+		}
 		return this;
 	}
 
+	private static void write(FileChannel channel, long position,
+			ByteBuffer[] buffers) throws IOException {
+		channel.position(position);
+		ByteBuffer last = buffers[buffers.length - 1];
+		while (last.hasRemaining())
+			channel.write(buffers);
+	}
+
+	/**
+	 * Create header of avatar record
+	 *
+	 * @param magic
+	 *            {@link #RECORD_MAGIC} for records followed by their image
+	 *            data, {@link #REFERENCE_MAGIC} for records referencing the
+	 *            image data at the offset
+	 * @param hash
+	 * @param updateTime
+	 * @param lastModified
+	 * @param etag
+	 * @param length
+	 * @param checksum
+	 * @param offset
+	 * @return header
+	 * @throws IOException
+	 */
+	private static byte[] createRecordHeader(int magic, String hash,
+			long updateTime, long lastModified, String etag, int length,
+			int checksum, long offset) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(bytes);
+		stream.writeInt(magic);
+		stream.writeUTF(hash);
+		stream.writeLong(updateTime);
+		stream.writeLong(lastModified);
+		stream.writeBoolean(etag != null);
+		if (etag != null)
+			stream.writeUTF(etag);
+		stream.writeInt(length);
+		stream.writeInt(checksum);
+		if (magic == REFERENCE_MAGIC)
+			stream.writeLong(offset);
+		stream.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Atomically replace the index file. Must be called while holding the
+	 * write lock.
+	 *
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException {
+		Map<String, IndexEntry> entries;
+		String currentUrl;
+		long currentRefreshTime;
+		long currentGeneration;
+		long length;
+		synchronized (this) {
+			entries = new HashMap<String, IndexEntry>(this.index);
+			currentUrl = this.url;
+			currentRefreshTime = this.refreshTime;
+			currentGeneration = this.generation;
+			length = this.dataLength;
+		}
+
+		File temp = new File(this.indexFile.getPath() + TEMP_SUFFIX);
+		FileOutputStream output = new FileOutputStream(temp);
+		try {
+			DataOutputStream stream = new DataOutputStream(
+					new BufferedOutputStream(output));
+			stream.writeInt(INDEX_MAGIC);
+			stream.writeInt(VERSION);
+			stream.writeLong(currentGeneration);
+			stream.writeUTF(currentUrl);
+			stream.writeLong(currentRefreshTime);
+			stream.writeLong(length);
+			stream.writeInt(entries.size());
+			for (Entry<String, IndexEntry> entry : entries.entrySet()) {
+				IndexEntry value = entry.getValue();
+				stream.writeUTF(entry.getKey());
+				stream.writeLong(value.offset);
+				stream.writeInt(value.length);
+				stream.writeInt(value.recordLength);
+				stream.writeInt(value.checksum);
+				stream.writeLong(value.updateTime);
+				stream.writeLong(value.lastModified);
+				stream.writeBoolean(value.etag != null);
+				if (value.etag != null)
+					stream.writeUTF(value.etag);
+			}
+			stream.flush();
+			output.getFD().sync();
+		} finally {
+			try {
+				output.close();
+			} catch (IOException ignore) {
+			}
+		}
+		if (!replace(temp, this.indexFile))
+			throw new IOException(this.indexFile.getAbsolutePath());
+	}
+
+	private static boolean replace(File source, File target) {
+		return source.renameTo(target)
+				|| (target.delete() && source.renameTo(target));
+	}
+
+	private synchronized boolean isOpen() {
+		return this.opened;
+	}
+
+	private synchronized boolean isCompactionNeeded() {
+		return this.dataLength >= COMPACT_MIN_LENGTH
+				&& this.liveBytes < (this.dataLength - DATA_HEADER_LENGTH) / 2;
+	}
+
+	private synchronized boolean isCompactible() {
+		return this.liveBytes < this.dataLength - DATA_HEADER_LENGTH;
+	}
+
+	/**
+	 * Rewrite the data file with only the current record of every avatar.
+	 * Image data shared by several avatars is written once. Must be called
+	 * while holding the write lock.
+	 *
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		Map<String, IndexEntry> entries;
+		ByteBuffer source;
+		long newGeneration;
+		synchronized (this) {
+			entries = new HashMap<String, IndexEntry>(this.index);
+			source = map(this.dataLength).duplicate();
+			newGeneration = Math.max(System.currentTimeMillis(),
+					this.generation + 1);
+		}
+
+		File temp = new File(this.file.getPath() + TEMP_SUFFIX);
+		Map<String, IndexEntry> compacted = new HashMap<String, IndexEntry>(
+				entries.size());
+		Map<Long, Long> moved = new HashMap<Long, Long>();
+		long position = DATA_HEADER_LENGTH;
+		RandomAccessFile output = new RandomAccessFile(temp, "rw"); //$NON-NLS-1$
+		try {
+			output.setLength(0);
+			FileChannel channel = output.getChannel();
+			write(channel, 0, new ByteBuffer[] { createDataHeader(newGeneration) });
+			for (Entry<String, IndexEntry> entry : entries.entrySet()) {
+				IndexEntry value = entry.getValue();
+				Long offset = moved.get(Long.valueOf(value.offset));
+				if (offset != null) {
+					byte[] header = createRecordHeader(REFERENCE_MAGIC,
+							entry.getKey(), value.updateTime,
+							value.lastModified, value.etag, value.length,
+							value.checksum, offset.longValue());
+					write(channel, position,
+							new ByteBuffer[] { ByteBuffer.wrap(header) });
+					compacted.put(entry.getKey(), new IndexEntry(offset
+							.longValue(), value.length, header.length
+							+ value.length, value.checksum, value.updateTime,
+							value.lastModified, value.etag));
+					position += header.length;
+					continue;
+				}
+				byte[] header = createRecordHeader(RECORD_MAGIC,
+						entry.getKey(), value.updateTime, value.lastModified,
+						value.etag, value.length, value.checksum, -1L);
+				ByteBuffer payload = source.duplicate();
+				payload.limit((int) value.offset + value.length);
+				payload.position((int) value.offset);
+				write(channel, position, new ByteBuffer[] {
+						ByteBuffer.wrap(header), payload });
+				moved.put(Long.valueOf(value.offset), Long.valueOf(position
+						+ header.length));
+				compacted.put(entry.getKey(), new IndexEntry(position
+						+ header.length, value.length, header.length
+						+ value.length, value.checksum, value.updateTime,
+						value.lastModified, value.etag));
+				position += header.length + value.length;
+			}
+			channel.force(true);
+		} finally {
+			try {
+				output.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		synchronized (this) {
+			closeData();
+			// Fails on platforms that cannot replace a mapped file, the
+			// existing data file then stays in use uncompacted
+			if (!replace(temp, this.file)) {
+				temp.delete();
+				return;
+			}
+			clearIndex();
+			for (Entry<String, IndexEntry> entry : compacted.entrySet())
+				putEntry(entry.getKey(), entry.getValue());
+			indexPayloads();
+			this.generation = newGeneration;
+			this.dataLength = position;
+		}
+		writeIndex();
+	}
+
+	/**
+	 * Close data file. Queued avatars that have not been written by
+	 * {@link #flush()} or {@link #save(AvatarStore)} are discarded. The file
+	 * store is reopened on the next read or write.
+	 *
+	 * @return this file store
+	 */
+	public AvatarFileStore close() {
+		synchronized (this.writeLock) {
+			this.flushJob.cancel();
+			synchronized (this) {
+				closeData();
+				this.pending.clear();
+				this.pendingBytes = 0L;
+				this.flushScheduled = false;
+				this.opened = false;
+			}
+		}
+		return this;
+	}
+
+	private void closeData() {
+		this.mapped = null;
+		if (this.data != null) {
+			try {
+				this.data.close();
+			} catch (IOException ignore) {
+			}
+			this.data = null;
+		}
+	}
+
+	private FileChannel getChannel() throws IOException {
+		if (this.data == null) {
+			File parent = this.file.getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+				throw new IOException(parent.getAbsolutePath());
+			this.data = new RandomAccessFile(this.file, "rw"); //$NON-NLS-1$
+		}
+		return this.data.getChannel();
+	}
+
+	/**
+	 * Get mapped view of the data file that covers at least the specified
+	 * number of bytes, remapping when records have been appended since the
+	 * last mapping.
+	 *
+	 * @param required
+	 * @return buffer
+	 * @throws IOException
+	 */
+	private MappedByteBuffer map(long required) throws IOException {
+		if (this.mapped == null || this.mapped.capacity() < required) {
+			FileChannel channel = getChannel();
+			long size = channel.size();
+			if (size < required || size > Integer.MAX_VALUE)
+				throw new IOException(this.file.getAbsolutePath());
+			this.mapped = channel.map(MapMode.READ_ONLY, 0, size);
+		}
+		return this.mapped;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarArchive#contains(java.lang.String)
+	 */
+	public synchronized boolean contains(String hash) {
+		return this.pending.containsKey(hash) || this.index.containsKey(hash);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarArchive#getHashes()
+	 */
+	public synchronized String[] getHashes() {
+		List<String> hashes = new ArrayList<String>(this.index.keySet());
+		for (String hash : this.pending.keySet())
+			if (!this.index.containsKey(hash))
+				hashes.add(hash);
+		return hashes.toArray(new String[hashes.size()]);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarArchive#getUpdateTime(java.lang.String)
+	 */
+	public synchronized long getUpdateTime(String hash) {
+		Avatar avatar = this.pending.get(hash);
+		if (avatar != null)
+			return avatar.getUpdateTime();
+		IndexEntry entry = this.index.get(hash);
+		return entry != null ? entry.updateTime : -1L;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarArchive#size()
+	 */
+	public synchronized int size() {
+		int size = this.index.size();
+		for (String hash : this.pending.keySet())
+			if (!this.index.containsKey(hash))
+				size++;
+		return size;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarArchive#getByteCount()
+	 */
+	public synchronized long getByteCount() {
+		return this.dataLength + this.pendingBytes;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarArchive#read(java.lang.String)
+	 */
+	public Avatar read(String hash) throws IOException {
+		IndexEntry entry;
+		ByteBuffer buffer;
+		synchronized (this) {
+			Avatar queued = this.pending.get(hash);
+			if (queued != null)
+				return queued;
+			entry = this.index.get(hash);
+			if (entry == null)
+				return null;
+			buffer = map(entry.offset + entry.length).duplicate();
+		}
+		byte[] bytes = new byte[entry.length];
+		buffer.position((int) entry.offset);
+		buffer.get(bytes);
+		return AvatarContentPool.intern(new Avatar(AvatarStore
+				.getVariantHash(hash), AvatarStore.getVariantSize(hash),
+				entry.updateTime, bytes, entry.etag, entry.lastModified));
+	}
+
+	/**
+	 * Queue avatar to be written by the background flush job
+	 *
+	 * @see org.github.avatar.ui.IAvatarArchive#write(org.github.avatar.ui.Avatar)
+	 */
+	public void write(Avatar avatar) {
+		Assert.isNotNull(avatar, "Avatar cannot be null"); //$NON-NLS-1$
+		boolean schedule;
+		boolean full;
+		synchronized (this) {
+			String hash = getKey(avatar);
+			IndexEntry current = this.index.get(hash);
+			if (current != null && current.updateTime == avatar.getUpdateTime())
+				return;
+			Avatar previous = this.pending.put(hash, avatar);
+			if (previous != null)
+				this.pendingBytes -= previous.getLength();
+			this.pendingBytes += avatar.getLength();
+			schedule = !this.flushScheduled;
+			this.flushScheduled = true;
+			full = this.pendingBytes >= FLUSH_THRESHOLD;
+		}
+		if (schedule)
+			this.flushJob.schedule(full ? 0L : FLUSH_DELAY);
+		else if (full)
+			this.flushJob.wakeUp();
+	}
 }
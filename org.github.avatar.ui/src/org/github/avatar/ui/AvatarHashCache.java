@@ -0,0 +1,216 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * Bounded memo of resolved avatar hashes keyed by e-mail string or by element
+ * identity. Entries are spread over independently locked stripes, each kept in
+ * least-recently-used order, so concurrent painting threads rarely contend.
+ * <p>
+ * Elements are only weakly referenced so that memoizing an element never keeps
+ * it from being collected.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+final class AvatarHashCache {
+
+	/**
+	 * DEFAULT_MAX_SIZE
+	 */
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	/**
+	 * Value memoized for elements that do not adapt to a hash provider
+	 */
+	public static final String NONE = new String();
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * Key comparing elements by identity
+	 */
+	private static abstract class ElementKey {
+
+		private final int hash;
+
+		private ElementKey(Object element) {
+			this.hash = System.identityHashCode(element);
+		}
+
+		protected abstract Object get();
+
+		public int hashCode() {
+			return this.hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof ElementKey))
+				return false;
+			Object element = get();
+			return element != null && element == ((ElementKey) obj).get();
+		}
+	}
+
+	/**
+	 * Key stored in the memo
+	 */
+	private static class WeakElementKey extends ElementKey {
+
+		private final WeakReference<Object> element;
+
+		private WeakElementKey(Object element) {
+			super(element);
+			this.element = new WeakReference<Object>(element);
+		}
+
+		protected Object get() {
+			return this.element.get();
+		}
+	}
+
+	/**
+	 * Key used for lookups
+	 */
+	private static class LookupKey extends ElementKey {
+
+		private final Object element;
+
+		private LookupKey(Object element) {
+			super(element);
+			this.element = element;
+		}
+
+		protected Object get() {
+			return this.element;
+		}
+	}
+
+	/**
+	 * Access-ordered stripe
+	 */
+	private static class Stripe extends LinkedHashMap<Object, String> {
+
+		private static final long serialVersionUID = 5092424618612346381L;
+
+		private final int maxSize;
+
+		private Stripe(int maxSize) {
+			super(16, 0.75F, true);
+			this.maxSize = maxSize;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<Object, String> eldest) {
+			return size() > this.maxSize;
+		}
+	}
+
+	private final Stripe[] stripes;
+
+	/**
+	 * Create memo with default size
+	 */
+	public AvatarHashCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Create memo
+	 *
+	 * @param maxSize
+	 */
+	public AvatarHashCache(int maxSize) {
+		int perStripe = Math.max(1, maxSize / STRIPES);
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			this.stripes[i] = new Stripe(perStripe);
+	}
+
+	private Stripe getStripe(Object key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.stripes[hash & (STRIPES - 1)];
+	}
+
+	private String get(Object key) {
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			return stripe.get(key);
+		}
+	}
+
+	private void put(Object key, String hash) {
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			stripe.put(key, hash);
+		}
+	}
+
+	/**
+	 * Get memoized hash of e-mail address
+	 *
+	 * @param email
+	 * @return hash or null if not memoized
+	 */
+	public String getEmailHash(String email) {
+		return get(email);
+	}
+
+	/**
+	 * Memoize hash of e-mail address
+	 *
+	 * @param email
+	 * @param hash
+	 */
+	public void putEmailHash(String email, String hash) {
+		Assert.isNotNull(email, "Email cannot be null"); //$NON-NLS-1$
+		Assert.isNotNull(hash, "Hash cannot be null"); //$NON-NLS-1$
+		put(email, hash);
+	}
+
+	/**
+	 * Get memoized hash of element
+	 *
+	 * @param element
+	 * @return hash, {@link #NONE}, or null if not memoized
+	 */
+	public String getElementHash(Object element) {
+		return get(new LookupKey(element));
+	}
+
+	/**
+	 * Memoize hash of element
+	 *
+	 * @param element
+	 * @param hash
+	 *            resolved hash or {@link #NONE}
+	 */
+	public void putElementHash(Object element, String hash) {
+		Assert.isNotNull(element, "Element cannot be null"); //$NON-NLS-1$
+		Assert.isNotNull(hash, "Hash cannot be null"); //$NON-NLS-1$
+		put(new WeakElementKey(element), hash);
+	}
+
+	/**
+	 * Clear all memoized hashes
+	 */
+	public void clear() {
+		for (Stripe stripe : this.stripes)
+			synchronized (stripe) {
+				stripe.clear();
+			}
+	}
+}
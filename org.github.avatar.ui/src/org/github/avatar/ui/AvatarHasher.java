@@ -0,0 +1,154 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Avatar hashing helper that keeps a digest and its buffers per thread so
+ * that hashing an e-mail address only allocates the resulting string.
+ * <p>
+ * Hashes are the lower-case hexadecimal MD5 digest of the CP1252 bytes of the
+ * trimmed, lower-cased e-mail address. Addresses made up entirely of ASCII
+ * characters are encoded directly since CP1252 and ASCII agree on that range,
+ * all other addresses go through the regular string and charset conversions.
+ * <p>
+ * The same digest identifies avatar image data so identical images can be
+ * shared across hashes.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+final class AvatarHasher {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	/**
+	 * Inputs longer than this are encoded into a temporary buffer instead of
+	 * growing the per-thread buffer
+	 */
+	private static final int MAX_BUFFER = 1024;
+
+	private static final ThreadLocal<AvatarHasher> HASHERS = new ThreadLocal<AvatarHasher>() {
+
+		protected AvatarHasher initialValue() {
+			return new AvatarHasher();
+		}
+	};
+
+	/**
+	 * Is the given value a valid hash?
+	 *
+	 * @param hash
+	 * @return true if 32 lower-case hexadecimal characters, false otherwise
+	 */
+	static boolean isValidHash(String hash) {
+		if (hash == null || hash.length() != AvatarStore.HASH_LENGTH)
+			return false;
+		for (int i = 0; i < AvatarStore.HASH_LENGTH; i++) {
+			char c = hash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get hash of e-mail address
+	 *
+	 * @param email
+	 * @return hash or null if the address is null, blank, or hashing is
+	 *         unavailable
+	 */
+	static String hashEmail(String email) {
+		if (email == null)
+			return null;
+		int start = 0;
+		int end = email.length();
+		while (start < end && email.charAt(start) <= ' ')
+			start++;
+		while (end > start && email.charAt(end - 1) <= ' ')
+			end--;
+		if (start == end)
+			return null;
+
+		AvatarHasher hasher = HASHERS.get();
+		if (hasher.digest == null)
+			return null;
+		int length = end - start;
+		byte[] input = hasher.getInput(length);
+		for (int i = 0; i < length; i++) {
+			char c = email.charAt(start + i);
+			if (c >= 0x80)
+				return hasher.hash(email.trim().toLowerCase(Locale.US)
+						.getBytes(AvatarStore.CHARSET));
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			input[i] = (byte) c;
+		}
+		return hasher.hash(input, length);
+	}
+
+	/**
+	 * Get digest of avatar image data
+	 *
+	 * @param bytes
+	 * @return hexadecimal digest or null if hashing is unavailable
+	 */
+	static String digest(byte[] bytes) {
+		AvatarHasher hasher = HASHERS.get();
+		return hasher.digest != null ? hasher.hash(bytes) : null;
+	}
+
+	private final MessageDigest digest;
+	private final byte[] digested;
+	private final char[] hex = new char[AvatarStore.HASH_LENGTH];
+	private byte[] input = new byte[64];
+
+	private AvatarHasher() {
+		MessageDigest created;
+		try {
+			created = MessageDigest.getInstance(AvatarStore.HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			created = null;
+		}
+		this.digest = created;
+		this.digested = new byte[AvatarStore.HASH_LENGTH / 2];
+	}
+
+	private byte[] getInput(int length) {
+		if (length > MAX_BUFFER)
+			return new byte[length];
+		if (length > this.input.length)
+			this.input = new byte[Math.max(length, this.input.length * 2)];
+		return this.input;
+	}
+
+	private String hash(byte[] bytes) {
+		return hash(bytes, bytes.length);
+	}
+
+	private String hash(byte[] bytes, int length) {
+		this.digest.update(bytes, 0, length);
+		try {
+			this.digest.digest(this.digested, 0, this.digested.length);
+		} catch (DigestException e) {
+			this.digest.reset();
+			return null;
+		}
+		for (int i = 0, j = 0; i < this.digested.length; i++) {
+			int value = this.digested[i] & 0xFF;
+			this.hex[j++] = HEX[value >>> 4];
+			this.hex[j++] = HEX[value & 0x0F];
+		}
+		return new String(this.hex);
+	}
+}
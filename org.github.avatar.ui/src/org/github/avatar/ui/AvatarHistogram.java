@@ -0,0 +1,118 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations. Durations are counted in power-of-two
+ * microsecond buckets so percentiles are reported as the upper bound of the
+ * bucket they fall in.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record duration
+	 *
+	 * @param nanos
+	 * @return this histogram
+	 */
+	public AvatarHistogram record(long nanos) {
+		long micros = Math.max(0L, nanos / 1000L);
+		int bucket = Math.min(BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(micros));
+		this.buckets.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.total.addAndGet(micros);
+		long current;
+		while (micros > (current = this.max.get()))
+			if (this.max.compareAndSet(current, micros))
+				break;
+		return this;
+	}
+
+	/**
+	 * Get number of recorded durations
+	 *
+	 * @return count
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Get mean duration
+	 *
+	 * @return mean in milliseconds
+	 */
+	public double getMean() {
+		long recorded = this.count.get();
+		return recorded > 0 ? this.total.get() / 1000D / recorded : 0D;
+	}
+
+	/**
+	 * Get maximum duration
+	 *
+	 * @return maximum in milliseconds
+	 */
+	public double getMax() {
+		return this.max.get() / 1000D;
+	}
+
+	/**
+	 * Get duration that the given fraction of recorded durations do not
+	 * exceed
+	 *
+	 * @param fraction
+	 *            between 0 and 1
+	 * @return percentile in milliseconds
+	 */
+	public double getPercentile(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long recorded = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets.get(i);
+			recorded += counts[i];
+		}
+		if (recorded == 0)
+			return 0D;
+		long target = (long) Math.ceil(recorded * fraction);
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(1L << i, Math.max(1L, this.max.get())) / 1000D;
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clear all recorded durations
+	 *
+	 * @return this histogram
+	 */
+	public AvatarHistogram reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			this.buckets.set(i, 0L);
+		this.count.set(0L);
+		this.total.set(0L);
+		this.max.set(0L);
+		return this;
+	}
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+/**
+ * Default avatar transport using {@link HttpURLConnection}.
+ * <p>
+ * Connections are reused through the JDK's HTTP keep-alive cache, which
+ * returns a connection to the pool once its response has been read to the
+ * end and closed. This transport therefore always consumes response bodies,
+ * including error and not-modified responses, and only gives up a connection
+ * when a body is too large to be worth draining or a request fails.
+ * <p>
+ * Avatar bodies are read straight into an array sized from the
+ * Content-Length header so a download allocates about as much as the avatar
+ * itself. Bodies larger than the maximum avatar length are rejected.
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarHttpTransport implements IAvatarTransport {
+
+	/**
+	 * DEFAULT_CONNECT_TIMEOUT
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = AvatarStore.TIMEOUT;
+
+	/**
+	 * DEFAULT_READ_TIMEOUT
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+	/**
+	 * Maximum number of bytes drained from a response that is not used
+	 */
+	public static final int MAX_DRAIN = 64 * 1024;
+
+	/**
+	 * DEFAULT_MAX_LENGTH
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile int maxLength = DEFAULT_MAX_LENGTH;
+
+	/**
+	 * Set timeout for establishing connections
+	 * 
+	 * @param connectTimeout
+	 *            in milliseconds
+	 * @return this transport
+	 */
+	public AvatarHttpTransport setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = Math.max(0, connectTimeout);
+		return this;
+	}
+
+	/**
+	 * Get timeout for establishing connections
+	 * 
+	 * @return timeout in milliseconds
+	 */
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	/**
+	 * Set timeout for reads from established connections
+	 * 
+	 * @param readTimeout
+	 *            in milliseconds
+	 * @return this transport
+	 */
+	public AvatarHttpTransport setReadTimeout(int readTimeout) {
+		this.readTimeout = Math.max(0, readTimeout);
+		return this;
+	}
+
+	/**
+	 * Get timeout for reads from established connections
+	 * 
+	 * @return timeout in milliseconds
+	 */
+	public int getReadTimeout() {
+		return this.readTimeout;
+	}
+
+	/**
+	 * Set maximum length of an avatar body. Longer responses fail without
+	 * being read.
+	 * 
+	 * @param maxLength
+	 *            in bytes
+	 * @return this transport
+	 */
+	public AvatarHttpTransport setMaxLength(int maxLength) {
+		this.maxLength = Math.max(0, maxLength);
+		return this;
+	}
+
+	/**
+	 * Get maximum length of an avatar body
+	 * 
+	 * @return max length in bytes
+	 */
+	public int getMaxLength() {
+		return this.maxLength;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarTransport#get(java.lang.String,
+	 *      java.lang.String, long)
+	 */
+	public AvatarResponse get(String url, String etag, long lastModified)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url)
+				.openConnection();
+		connection.setConnectTimeout(this.connectTimeout);
+		connection.setReadTimeout(this.readTimeout);
+		connection.setUseCaches(false);
+		if (etag != null)
+			connection.setRequestProperty(AvatarStore.HEADER_IF_NONE_MATCH,
+					etag);
+		if (lastModified > 0)
+			connection.setIfModifiedSince(lastModified);
+
+		try {
+			int status = connection.getResponseCode();
+			byte[] body = null;
+			if (status == HttpURLConnection.HTTP_OK) {
+				int length = connection.getContentLength();
+				if (length > this.maxLength)
+					throw createTooLargeException(url);
+				body = read(url, connection.getInputStream(), length);
+			} else if (!drain(status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection
+					.getErrorStream() : connection.getInputStream()))
+				connection.disconnect();
+			return new AvatarResponse(status,
+					connection.getHeaderField(AvatarStore.HEADER_ETAG),
+					connection.getLastModified(), body);
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	private IOException createTooLargeException(String url) {
+		return new IOException(MessageFormat.format(
+				Messages.AvatarHttpTransport_AvatarTooLarge, url,
+				Integer.valueOf(this.maxLength)));
+	}
+
+	/**
+	 * Read body into an array of its exact length
+	 * 
+	 * @param url
+	 * @param input
+	 * @param length
+	 *            from the Content-Length header, -1 if unknown
+	 * @return body
+	 * @throws IOException
+	 */
+	private byte[] read(String url, InputStream input, int length)
+			throws IOException {
+		int limit = this.maxLength;
+		try {
+			byte[] body = new byte[length >= 0 ? length : (int) Math.min(
+					AvatarStore.BUFFER_SIZE, limit + 1L)];
+			int count = 0;
+			while (true) {
+				if (count == body.length) {
+					// Bodies of known length end here, others grow until
+					// they end or pass the limit
+					if (length >= 0 || count > limit)
+						break;
+					body = Arrays.copyOf(body,
+							(int) Math.min(2L * count, limit + 1L));
+				}
+				int read = input.read(body, count, body.length - count);
+				if (read == -1)
+					break;
+				count += read;
+			}
+			if (count > limit)
+				throw createTooLargeException(url);
+			if (count < length)
+				throw new EOFException();
+			return count == body.length ? body : Arrays.copyOf(body, count);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException ignore) {
+				// Ignored
+			}
+		}
+	}
+
+	/**
+	 * Read and discard the rest of the stream so the connection can be
+	 * reused
+	 * 
+	 * @param input
+	 *            may be null
+	 * @return true if fully drained, false otherwise
+	 */
+	private boolean drain(InputStream input) {
+		if (input == null)
+			return true;
+		try {
+			byte[] buffer = new byte[AvatarStore.BUFFER_SIZE];
+			int total = 0;
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				total += read;
+				if (total > MAX_DRAIN)
+					return false;
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				input.close();
+			} catch (IOException ignore) {
+				// Ignored
+			}
+		}
+	}
+}
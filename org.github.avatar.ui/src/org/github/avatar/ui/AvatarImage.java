@@ -10,17 +10,12 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
-import java.io.ByteArrayInputStream;
-
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.jface.resource.ImageDescriptor;
-import org.eclipse.swt.SWT;
 import org.eclipse.swt.SWTException;
-import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.ImageLoader;
-import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.PlatformUI;
 
@@ -53,9 +48,10 @@ public class AvatarImage {
 		if (this.data != null)
 			return this.data;
 
+		long start = System.nanoTime();
 		try {
-			ImageData[] images = new ImageLoader()
-					.load(new ByteArrayInputStream(avatar.getBytes()));
+			ImageData[] images = new ImageLoader().load(avatar
+					.getInputStream());
 			if (images.length > 0)
 				this.data = images[0];
 			else
@@ -64,10 +60,30 @@ public class AvatarImage {
 		} catch (SWTException exception) {
 			this.data = ImageDescriptor.getMissingImageDescriptor()
 					.getImageData();
+		} finally {
+			AvatarStoreMetrics.recordDecode(System.nanoTime() - start);
 		}
 		return this.data;
 	}
 
+	/**
+	 * Get avatar image data scaled to specified size with
+	 * {@link AvatarScaler}. This does not need a display and can be called
+	 * from any thread.
+	 * 
+	 * @param size
+	 * @return scaled image data
+	 */
+	public ImageData getScaledData(int size) {
+		ImageData source = getData();
+		long start = System.nanoTime();
+		try {
+			return AvatarScaler.scale(source, size, size);
+		} finally {
+			AvatarStoreMetrics.recordScale(System.nanoTime() - start);
+		}
+	}
+
 	/**
 	 * Get avatar image scaled to specified size. The returned image should be
 	 * managed and properly disposed of by the caller.
@@ -76,27 +92,19 @@ public class AvatarImage {
 	 * @return scaled image
 	 */
 	public Image getScaledImage(int size) {
-		Display display = PlatformUI.getWorkbench().getDisplay();
-		Image image = new Image(display, getData());
-		Rectangle sourceBounds = image.getBounds();
-
-		// Return original image and don't scale if size matches request
-		if (sourceBounds.width == size)
-			return image;
+		return getScaledImage(PlatformUI.getWorkbench().getDisplay(), size);
+	}
 
-		Image scaled = new Image(display, size, size);
-		GC gc = new GC(scaled);
-		try {
-			gc.setAntialias(SWT.ON);
-			gc.setInterpolation(SWT.HIGH);
-			Rectangle targetBounds = scaled.getBounds();
-			gc.drawImage(image, 0, 0, sourceBounds.width, sourceBounds.height,
-					0, 0, targetBounds.width, targetBounds.height);
-		} finally {
-			gc.dispose();
-			image.dispose();
-		}
-		return scaled;
+	/**
+	 * Get avatar image scaled to specified size on display. The returned image
+	 * should be managed and properly disposed of by the caller.
+	 * 
+	 * @param display
+	 * @param size
+	 * @return scaled image
+	 */
+	public Image getScaledImage(Display display, int size) {
+		return new Image(display, getScaledData(size));
 	}
 
 }
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Cache of scaled avatar images shared by all consumers on a display and by
+ * all avatars with identical image data.
+ * <p>
+ * Images are reference counted, every {@link #acquire(Avatar, int)} must be
+ * balanced by a {@link #release(Image)} and an image is disposed once its last
+ * consumer releases it. All remaining images are disposed when the display is
+ * disposed. Instances must only be used from the display's thread.
+ * <p>
+ * Image data can be decoded and scaled ahead of time from any thread with
+ * {@link #prepare(Avatar, int)} and passed to
+ * {@link #acquire(Avatar, int, ImageData)}, acquiring the image on the
+ * display's thread then only has to create the image from it. Scaled image
+ * data is also kept in the {@link AvatarScaledStore} set with
+ * {@link #setScaledStore(AvatarScaledStore)} so later sessions can skip
+ * decoding and scaling altogether.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarImageCache {
+
+	private static final Map<Display, AvatarImageCache> caches = new HashMap<Display, AvatarImageCache>();
+
+	private static volatile AvatarScaledStore scaledStore;
+
+	/**
+	 * Get image cache for display
+	 *
+	 * @param display
+	 * @return non-null image cache
+	 */
+	public static AvatarImageCache getCache(final Display display) {
+		Assert.isNotNull(display, "Display cannot be null"); //$NON-NLS-1$
+		synchronized (caches) {
+			AvatarImageCache cache = caches.get(display);
+			if (cache == null) {
+				final AvatarImageCache created = new AvatarImageCache(display);
+				display.disposeExec(new Runnable() {
+
+					public void run() {
+						synchronized (caches) {
+							caches.remove(display);
+						}
+						created.dispose();
+					}
+				});
+				caches.put(display, created);
+				cache = created;
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Shared image and its number of consumers
+	 */
+	private static class CachedImage {
+
+		private final String key;
+		private final Image image;
+		private int references = 1;
+
+		private CachedImage(String key, Image image) {
+			this.key = key;
+			this.image = image;
+		}
+	}
+
+	private final Display display;
+	private final Map<String, CachedImage> images = new HashMap<String, CachedImage>();
+	private final Map<Image, CachedImage> consumed = new IdentityHashMap<Image, CachedImage>();
+
+	private AvatarImageCache(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * Set persistent store of scaled image data
+	 *
+	 * @param store
+	 *            may be null to not persist scaled image data
+	 */
+	public static void setScaledStore(AvatarScaledStore store) {
+		scaledStore = store;
+	}
+
+	/**
+	 * Get persistent store of scaled image data
+	 *
+	 * @return store or null if none
+	 */
+	public static AvatarScaledStore getScaledStore() {
+		return scaledStore;
+	}
+
+	/**
+	 * Read scaled image data of avatar from the scaled store, or decode and
+	 * scale it and add it to the scaled store
+	 *
+	 * @param avatar
+	 * @param size
+	 * @return image data
+	 */
+	private static ImageData load(Avatar avatar, int size) {
+		AvatarScaledStore store = scaledStore;
+		String digest = avatar.getDigest();
+		if (store == null || digest == null)
+			return new AvatarImage(avatar).getScaledData(size);
+
+		ImageData data = store.read(digest, size);
+		if (data == null) {
+			data = new AvatarImage(avatar).getScaledData(size);
+			try {
+				store.write(digest, data);
+			} catch (IOException ignore) {
+				// Scaled again in the next session
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Decode and scale image data of avatar so that acquiring its image does
+	 * not have to. Reads and writes the scaled store, so this should be called
+	 * from a background thread.
+	 *
+	 * @see #acquire(Avatar, int, ImageData)
+	 * @param avatar
+	 * @param size
+	 * @return non-null image data
+	 */
+	public static ImageData prepare(Avatar avatar, int size) {
+		Assert.isNotNull(avatar, "Avatar cannot be null"); //$NON-NLS-1$
+		return load(avatar, size);
+	}
+
+	/**
+	 * Get key that images of avatar at size are cached under
+	 *
+	 * @param avatar
+	 * @param size
+	 * @return key
+	 */
+	static String getKey(Avatar avatar, int size) {
+		// Avatars with identical image data share images, refreshed avatars
+		// get new images once their data changes
+		String digest = avatar.getDigest();
+		if (digest != null)
+			return digest + '/' + size;
+		return AvatarStore.getVariantKey(avatar) + '/' + size + '/'
+				+ avatar.getUpdateTime();
+	}
+
+	/**
+	 * Acquire image of avatar scaled to size. Use
+	 * {@link #acquire(Avatar, int, ImageData)} with prepared image data to
+	 * avoid decoding and scaling on the display's thread.
+	 *
+	 * @param avatar
+	 * @param size
+	 * @return non-null image that must be released with
+	 *         {@link #release(Image)}
+	 */
+	public Image acquire(Avatar avatar, int size) {
+		return acquire(avatar, size, null);
+	}
+
+	/**
+	 * Acquire image of avatar scaled to size, creating it from image data
+	 * previously returned by {@link #prepare(Avatar, int)} if not already
+	 * cached
+	 *
+	 * @param avatar
+	 * @param size
+	 * @param data
+	 *            prepared image data, may be null
+	 * @return non-null image that must be released with
+	 *         {@link #release(Image)}
+	 */
+	public Image acquire(Avatar avatar, int size, ImageData data) {
+		Assert.isNotNull(avatar, "Avatar cannot be null"); //$NON-NLS-1$
+		String key = getKey(avatar, size);
+		CachedImage cached = this.images.get(key);
+		if (cached != null)
+			cached.references++;
+		else {
+			// Only scale in memory, the scaled store is not accessed from the
+			// display's thread
+			if (data == null)
+				data = new AvatarImage(avatar).getScaledData(size);
+			cached = new CachedImage(key, new Image(this.display, data));
+			this.images.put(key, cached);
+			this.consumed.put(cached.image, cached);
+		}
+		return cached.image;
+	}
+
+	/**
+	 * Does this cache hold an image of avatar at size?
+	 *
+	 * @param avatar
+	 * @param size
+	 * @return true if held, false otherwise
+	 */
+	public boolean contains(Avatar avatar, int size) {
+		return this.images.containsKey(getKey(avatar, size));
+	}
+
+	/**
+	 * Release image previously acquired from this cache
+	 *
+	 * @param image
+	 * @return this cache
+	 */
+	public AvatarImageCache release(Image image) {
+		CachedImage cached = image != null ? this.consumed.get(image) : null;
+		if (cached != null && --cached.references <= 0) {
+			this.consumed.remove(image);
+			this.images.remove(cached.key);
+			cached.image.dispose();
+		}
+		return this;
+	}
+
+	/**
+	 * Get number of images currently held
+	 *
+	 * @return image count
+	 */
+	public int size() {
+		return this.images.size();
+	}
+
+	private void dispose() {
+		for (CachedImage cached : this.images.values())
+			if (!cached.image.isDisposed())
+				cached.image.dispose();
+		this.images.clear();
+		this.consumed.clear();
+	}
+}
@@ -8,13 +8,27 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
 import org.eclipse.jface.viewers.ColumnViewer;
 import org.eclipse.jface.viewers.ITableLabelProvider;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.TreeItem;
+import org.eclipse.swt.widgets.Widget;
 
 /**
- * Avatar label provider class.
+ * Avatar label provider class. Avatar images are decoded and scaled in the
+ * background, painting only creates images from prepared image data.
  * 
  * @author Kevin Sawicki (kevin@github.com)
  */
@@ -26,10 +40,43 @@ public class AvatarLabelProvider extends LabelProvider implements
 	 */
 	public static final int DEFAULT_IMAGE_SIZE = 32;
 
+	/**
+	 * Maximum number of most recently displayed elements whose avatar
+	 * requests keep interactive priority. Requests of other elements are
+	 * cancelled once the elements are no longer visible.
+	 */
+	public static final int MAX_INTERACTIVE = 64;
+
 	private AvatarStore store = AvatarPlugin.getDefault().getAvatars();
 
 	private ColumnViewer viewer;
+	private final Display display;
+	private final AvatarDisplayDispatcher dispatcher;
+	private volatile boolean disposed = false;
 	private int imageSize = DEFAULT_IMAGE_SIZE;
+	private AvatarImageCache images;
+	private final Map<String, Image> acquired = new HashMap<String, Image>();
+	private final Set<Object> updates = new LinkedHashSet<Object>();
+	private final Map<String, Set<Object>> preparing = new HashMap<String, Set<Object>>();
+	private final Map<String, ImageData> prepared = new HashMap<String, ImageData>();
+	private final Map<Object, IAvatarRequest> requests = new LinkedHashMap<Object, IAvatarRequest>(
+			16, 0.75F, true);
+	private boolean updateScheduled = false;
+	private boolean sweepScheduled = false;
+
+	private final Runnable updater = new Runnable() {
+
+		public void run() {
+			updateElements();
+		}
+	};
+
+	private final Runnable sweeper = new Runnable() {
+
+		public void run() {
+			sweepRequests();
+		}
+	};
 
 	/**
 	 * Create avatar label provider for viewer
@@ -38,6 +85,18 @@ public class AvatarLabelProvider extends LabelProvider implements
 	 */
 	public AvatarLabelProvider(ColumnViewer viewer) {
 		this.viewer = viewer;
+		this.display = viewer.getControl().getDisplay();
+		this.dispatcher = AvatarDisplayDispatcher.getDispatcher(this.display);
+	}
+
+	/**
+	 * Has this label provider or its viewer's control been disposed?
+	 * Callbacks arriving after that are ignored.
+	 * 
+	 * @return true if disposed, false otherwise
+	 */
+	private boolean isDisposed() {
+		return this.disposed || this.viewer.getControl().isDisposed();
 	}
 
 	/**
@@ -47,32 +106,293 @@ public class AvatarLabelProvider extends LabelProvider implements
 	 * @return this label provider
 	 */
 	public AvatarLabelProvider setImageSize(int size) {
-		this.imageSize = Math.max(1, size);
+		size = Math.max(1, size);
+		if (size != this.imageSize) {
+			releaseImages();
+			this.prepared.clear();
+			cancelRequests();
+			this.imageSize = size;
+		}
 		return this;
 	}
 
+	private AvatarImageCache getImageCache() {
+		if (this.images == null)
+			this.images = AvatarImageCache.getCache(this.display);
+		return this.images;
+	}
+
+	private void releaseImages() {
+		if (this.images != null)
+			for (Image image : this.acquired.values())
+				this.images.release(image);
+		this.acquired.clear();
+	}
+
+	private void cancelRequests() {
+		for (IAvatarRequest request : this.requests.values())
+			request.cancel();
+		this.requests.clear();
+	}
+
 	/**
-	 * @see org.eclipse.jface.viewers.LabelProvider#getImage(java.lang.Object)
+	 * Request avatar of element with interactive priority or promote the
+	 * request already pending for it. Requests of elements that have not been
+	 * displayed recently are swept so that what is on screen loads first.
+	 * 
+	 * @param element
+	 * @param hash
 	 */
-	public Image getImage(final Object element) {
-		Image scaled = null;
-		String hash = this.store.getAdaptedHash(element);
-		Avatar avatar = this.store.getAvatarByHash(hash);
-		if (avatar != null)
-			scaled = new AvatarImage(avatar).getScaledImage(this.imageSize);
-		else
-			store.loadAvatarByHash(hash, new AvatarDisplayCallback(
+	private void request(final Object element, String hash) {
+		IAvatarRequest request = this.requests.get(element);
+		if (request != null && request.isDone()) {
+			this.requests.remove(element);
+			request = null;
+		}
+		if (request == null) {
+			final int size = this.imageSize;
+			request = this.store.requestAvatarByHash(hash, size,
+					IAvatarRequest.PRIORITY_INTERACTIVE,
 					new AvatarCallbackAdapter() {
 
-						public void loaded(Avatar avatar) {
-							if (!viewer.getControl().isDisposed())
-								viewer.refresh(element);
+						public void loaded(final Avatar avatar) {
+							dispatcher.post(new Runnable() {
+
+								public void run() {
+									if (!isDisposed() && size == imageSize)
+										schedulePrepare(element, avatar);
+								}
+							});
+						}
+					}, new Runnable() {
+
+						public void run() {
+							dispatcher.post(new Runnable() {
+
+								public void run() {
+									if (!isDisposed())
+										finished(element);
+								}
+							});
 						}
+					});
+			if (!request.isDone())
+				this.requests.put(element, request);
+		} else if (request.getPriority() != IAvatarRequest.PRIORITY_INTERACTIVE)
+			request.setPriority(IAvatarRequest.PRIORITY_INTERACTIVE);
 
-					}));
+		if (this.requests.size() > MAX_INTERACTIVE && !this.sweepScheduled) {
+			this.sweepScheduled = true;
+			this.dispatcher.post(this.sweeper);
+		}
+	}
+
+	/**
+	 * Sweep requests of all but the most recently displayed elements. Requests
+	 * of elements that are no longer visible are cancelled and those of
+	 * visible elements are demoted.
+	 */
+	private void sweepRequests() {
+		this.sweepScheduled = false;
+		if (isDisposed())
+			return;
+		int sweep = this.requests.size() - MAX_INTERACTIVE;
+		Iterator<Entry<Object, IAvatarRequest>> eldest = this.requests
+				.entrySet().iterator();
+		for (int i = 0; i < sweep; i++) {
+			Entry<Object, IAvatarRequest> entry = eldest.next();
+			IAvatarRequest pending = entry.getValue();
+			if (pending.isDone())
+				eldest.remove();
+			else if (!isVisible(entry.getKey())) {
+				pending.cancel();
+				eldest.remove();
+			} else if (pending.getPriority() == IAvatarRequest.PRIORITY_INTERACTIVE)
+				pending.setPriority(IAvatarRequest.PRIORITY_NORMAL);
+		}
+	}
+
+	/**
+	 * Is element shown in the visible area of the viewer's control? Elements
+	 * of viewers other than table and tree viewers are visible if the viewer
+	 * has an item for them.
+	 * 
+	 * @param element
+	 * @return true if visible, false otherwise
+	 */
+	private boolean isVisible(Object element) {
+		Widget item = this.viewer.testFindItem(element);
+		if (item instanceof TableItem) {
+			TableItem tableItem = (TableItem) item;
+			return tableItem.getBounds().intersects(
+					tableItem.getParent().getClientArea());
+		}
+		if (item instanceof TreeItem) {
+			TreeItem treeItem = (TreeItem) item;
+			return treeItem.getBounds().intersects(
+					treeItem.getParent().getClientArea());
+		}
+		return item != null;
+	}
+
+	/**
+	 * Decode and scale avatar in the background and update element once its
+	 * image data is prepared. Elements sharing an avatar wait for the same
+	 * image data instead of each preparing their own. Must be called on the
+	 * UI-thread.
+	 * 
+	 * @param element
+	 * @param avatar
+	 */
+	private void schedulePrepare(Object element, final Avatar avatar) {
+		final int size = this.imageSize;
+		if (getImageCache().contains(avatar, size)) {
+			scheduleUpdate(element);
+			return;
+		}
+		final String key = AvatarImageCache.getKey(avatar, size);
+		Set<Object> waiting = this.preparing.get(key);
+		if (waiting == null) {
+			waiting = new LinkedHashSet<Object>();
+			this.preparing.put(key, waiting);
+			this.store.getFetchScheduler().schedule(null, null,
+					IAvatarRequest.PRIORITY_INTERACTIVE, new Runnable() {
+
+						public void run() {
+							prepare(key, avatar, size);
+						}
+					});
+		}
+		waiting.add(element);
+	}
+
+	/**
+	 * Decode and scale avatar on the calling thread and post the prepared
+	 * image data to the UI-thread
+	 * 
+	 * @param key
+	 * @param avatar
+	 * @param size
+	 */
+	private void prepare(final String key, Avatar avatar, final int size) {
+		ImageData data = null;
+		try {
+			if (!this.disposed)
+				data = AvatarImageCache.prepare(avatar, size);
+		} finally {
+			final ImageData result = data;
+			this.dispatcher.post(new Runnable() {
+
+				public void run() {
+					if (isDisposed())
+						return;
+					Set<Object> waiting = preparing.remove(key);
+					if (waiting != null)
+						prepared(waiting, key, size, result);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Hold image data prepared for elements until they are updated. Must be
+	 * called on the UI-thread.
+	 * 
+	 * @param elements
+	 * @param key
+	 * @param size
+	 * @param data
+	 *            null if preparing failed, the elements are then not updated
+	 *            so that they aren't prepared over and over again
+	 */
+	private void prepared(Set<Object> elements, String key, int size,
+			ImageData data) {
+		if (data == null || size != this.imageSize)
+			return;
+		this.prepared.put(key, data);
+		for (Object element : elements)
+			scheduleUpdate(element);
+	}
+
+	private void finished(Object element) {
+		IAvatarRequest request = this.requests.get(element);
+		if (request != null && request.isDone())
+			this.requests.remove(element);
+	}
+
+	/**
+	 * @see org.eclipse.jface.viewers.LabelProvider#getImage(java.lang.Object)
+	 */
+	public Image getImage(final Object element) {
+		String hash = this.store.getAdaptedHash(element);
+		Avatar avatar = this.store.getAvatarByHash(hash, this.imageSize);
+		if (avatar == null) {
+			request(element, hash);
+			// Show any default size avatar until the requested size loads
+			avatar = this.store.getAvatarByHash(hash);
+		}
+		if (avatar == null)
+			return null;
+
+		ImageData data = null;
+		if (!getImageCache().contains(avatar, this.imageSize)) {
+			data = this.prepared.remove(AvatarImageCache.getKey(avatar,
+					this.imageSize));
+			if (data == null) {
+				// Keep showing the current image until the new one is
+				// prepared
+				schedulePrepare(element, avatar);
+				return this.acquired.get(hash);
+			}
+		}
+		// Hold one reference per hash, replacing it when the avatar changes
+		Image scaled = getImageCache().acquire(avatar, this.imageSize, data);
+		Image previous = this.acquired.put(hash, scaled);
+		if (previous != null)
+			this.images.release(previous);
 		return scaled;
 	}
 
+	/**
+	 * Queue element to be updated with all other elements whose avatars loaded
+	 * in the same dispatched batch. Must be called on the UI-thread.
+	 * 
+	 * @param element
+	 */
+	private void scheduleUpdate(Object element) {
+		if (isDisposed())
+			return;
+		this.updates.add(element);
+		if (!this.updateScheduled) {
+			this.updateScheduled = true;
+			this.dispatcher.post(this.updater);
+		}
+	}
+
+	private void updateElements() {
+		this.updateScheduled = false;
+		Object[] elements = this.updates.toArray();
+		this.updates.clear();
+		if (elements.length > 0 && !isDisposed())
+			this.viewer.update(elements, null);
+		// Data of elements that were not painted is prepared again once they
+		// are
+		this.prepared.clear();
+	}
+
+	/**
+	 * @see org.eclipse.jface.viewers.BaseLabelProvider#dispose()
+	 */
+	public void dispose() {
+		this.disposed = true;
+		this.updates.clear();
+		this.preparing.clear();
+		this.prepared.clear();
+		cancelRequests();
+		releaseImages();
+		super.dispose();
+	}
+
 	/**
 	 * @see org.eclipse.jface.viewers.ITableLabelProvider#getColumnImage(java.lang.Object,
 	 *      int)
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * Cache of avatars that recently could not be loaded, either because the
+ * server had no avatar or because the load failed. Loads of a cached avatar
+ * are suppressed until its retry time passes, and every further failure
+ * doubles the time until the next retry up to a maximum.
+ * <p>
+ * Lookups are a single concurrent map read and do not allocate.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarNegativeCache {
+
+	/**
+	 * DEFAULT_TTL
+	 */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+
+	/**
+	 * DEFAULT_MAX_TTL
+	 */
+	public static final long DEFAULT_MAX_TTL = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * DEFAULT_MAX_SIZE
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Percentage of the maximum size that purging a full cache shrinks it to
+	 */
+	private static final int PURGE_PERCENT = 75;
+
+	/**
+	 * Failure record
+	 */
+	private static class Entry {
+
+		private volatile long retryTime;
+		private int failures;
+	}
+
+	/**
+	 * Snapshot of an entry considered for removal when purging
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final String key;
+		private final Entry entry;
+		private final int failures;
+		private final long retryTime;
+
+		private Candidate(String key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			synchronized (entry) {
+				this.failures = entry.failures;
+				this.retryTime = entry.retryTime;
+			}
+		}
+
+		public int compareTo(Candidate other) {
+			if (this.failures != other.failures)
+				return this.failures < other.failures ? -1 : 1;
+			return this.retryTime < other.retryTime ? -1
+					: this.retryTime > other.retryTime ? 1 : 0;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile long maxTtl = DEFAULT_MAX_TTL;
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	/**
+	 * Set time that loads are suppressed for after the first failure
+	 *
+	 * @param ttl
+	 *            in milliseconds
+	 * @return this cache
+	 */
+	public AvatarNegativeCache setTtl(long ttl) {
+		this.ttl = Math.max(0L, ttl);
+		return this;
+	}
+
+	/**
+	 * Get time that loads are suppressed for after the first failure
+	 *
+	 * @return ttl in milliseconds
+	 */
+	public long getTtl() {
+		return this.ttl;
+	}
+
+	/**
+	 * Set maximum time that loads are suppressed for after repeated failures
+	 *
+	 * @param maxTtl
+	 *            in milliseconds
+	 * @return this cache
+	 */
+	public AvatarNegativeCache setMaxTtl(long maxTtl) {
+		this.maxTtl = Math.max(0L, maxTtl);
+		return this;
+	}
+
+	/**
+	 * Get maximum time that loads are suppressed for after repeated failures
+	 *
+	 * @return max ttl in milliseconds
+	 */
+	public long getMaxTtl() {
+		return this.maxTtl;
+	}
+
+	/**
+	 * Set maximum number of remembered failures
+	 *
+	 * @param maxSize
+	 * @return this cache
+	 */
+	public AvatarNegativeCache setMaxSize(int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+		return this;
+	}
+
+	/**
+	 * Get maximum number of remembered failures
+	 *
+	 * @return max size
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Is loading the avatar with the given key currently suppressed?
+	 *
+	 * @param key
+	 * @return true if suppressed, false otherwise
+	 */
+	public boolean isSuppressed(String key) {
+		Entry entry = this.entries.get(key);
+		if (entry == null || getCurrentTime() >= entry.retryTime)
+			return false;
+		this.hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Record failure to load the avatar with the given key
+	 *
+	 * @param key
+	 * @return time in milliseconds until the avatar is loaded again
+	 */
+	public long failed(String key) {
+		Assert.isNotNull(key, "Key cannot be null"); //$NON-NLS-1$
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			if (this.entries.size() >= this.maxSize)
+				purge();
+			Entry created = new Entry();
+			entry = this.entries.putIfAbsent(key, created);
+			if (entry == null)
+				entry = created;
+		}
+		synchronized (entry) {
+			long delay = this.ttl;
+			for (int i = 0; i < entry.failures && delay < this.maxTtl; i++)
+				delay <<= 1;
+			delay = Math.min(delay, this.maxTtl);
+			entry.failures++;
+			entry.retryTime = getCurrentTime() + delay;
+			return delay;
+		}
+	}
+
+	/**
+	 * Forget failures of the avatar with the given key
+	 *
+	 * @param key
+	 * @return this cache
+	 */
+	public AvatarNegativeCache succeeded(String key) {
+		this.entries.remove(key);
+		return this;
+	}
+
+	/**
+	 * Forget all failures
+	 *
+	 * @return this cache
+	 */
+	public AvatarNegativeCache clear() {
+		this.entries.clear();
+		return this;
+	}
+
+	/**
+	 * Get number of remembered failures
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Get number of loads suppressed by this cache
+	 *
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Get current time that retry times are compared against
+	 *
+	 * @return time in milliseconds
+	 */
+	long getCurrentTime() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Remove entries whose retry time passed longer than the maximum ttl ago.
+	 * If the cache is still full, remove entries until it is at three quarters
+	 * of its maximum size, those with the fewest failures and then the oldest
+	 * retry times first, so that avatars that keep failing continue their
+	 * backoff.
+	 */
+	private void purge() {
+		long stale = getCurrentTime() - this.maxTtl;
+		Iterator<Entry> iter = this.entries.values().iterator();
+		while (iter.hasNext())
+			if (iter.next().retryTime <= stale)
+				iter.remove();
+		int size = this.entries.size();
+		int excess = size - (int) ((long) this.maxSize * PURGE_PERCENT / 100);
+		if (size < this.maxSize || excess <= 0)
+			return;
+
+		// Entries are copied so that failures recorded concurrently can't
+		// change their order while sorting
+		List<Candidate> candidates = new ArrayList<Candidate>(size);
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet())
+			candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+		Collections.sort(candidates);
+		excess = Math.min(excess, candidates.size());
+		for (int i = 0; i < excess; i++) {
+			Candidate candidate = candidates.get(i);
+			this.entries.remove(candidate.key, candidate.entry);
+		}
+	}
+}
@@ -9,6 +9,11 @@
 package org.github.avatar.ui;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
@@ -27,6 +32,12 @@ public class AvatarPlugin extends AbstractUIPlugin {
 	 */
 	public static final String PLUGIN_ID = "org.github.avatar.ui"; //$NON-NLS-1$
 
+	/**
+	 * System property that enables keeping avatar image data outside of the
+	 * heap when set to true
+	 */
+	public static final String OFF_HEAP_PROPERTY = PLUGIN_ID + ".offHeap"; //$NON-NLS-1$
+
 	/**
 	 * Create error status
 	 * 
@@ -42,7 +53,10 @@ public class AvatarPlugin extends AbstractUIPlugin {
 	private static AvatarPlugin plugin;
 
 	private AvatarStore store;
+	private AvatarFileStore fileStore;
 	private ServiceRegistration storeRegistration;
+	private ServiceRegistration metricsRegistration;
+	private ObjectName metricsName;
 
 	/**
 	 * The constructor
@@ -66,18 +80,55 @@ public class AvatarPlugin extends AbstractUIPlugin {
 		super.start(context);
 		plugin = this;
 
+		this.fileStore = new AvatarFileStore(context.getBundle());
 		try {
-			this.store = new AvatarFileStore(context.getBundle()).load();
+			this.store = this.fileStore.load();
 		} catch (IOException e) {
 			log(Messages.AvatarPlugin_ExceptionLoadingStore, e);
 		} catch (ClassNotFoundException cnfe) {
 			log(Messages.AvatarPlugin_ExceptionLoadingStore, cnfe);
 		}
 		if (this.store == null)
-			this.store = new AvatarStore();
+			this.store = new AvatarStore().setArchive(this.fileStore);
+		if (Boolean.getBoolean(OFF_HEAP_PROPERTY))
+			this.store.setOffHeap(true);
+		AvatarImageCache.setScaledStore(new AvatarScaledStore(context
+				.getBundle()));
+
+		this.store.getRefreshScheduler().start();
 
 		this.storeRegistration = context.registerService(
 				IAvatarStore.class.getName(), this.store, null);
+		this.metricsRegistration = context.registerService(
+				IAvatarStoreMetrics.class.getName(), this.store.getMetrics(),
+				null);
+		registerMetrics();
+	}
+
+	private void registerMetrics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(AvatarStoreMetrics.OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this.store.getMetrics(), name);
+				this.metricsName = name;
+			}
+		} catch (JMException e) {
+			log(Messages.AvatarPlugin_ExceptionRegisteringMetrics, e);
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (this.metricsName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					this.metricsName);
+		} catch (JMException ignore) {
+			// Already unregistered
+		} finally {
+			this.metricsName = null;
+		}
 	}
 
 	private void log(String message, Throwable throwable) {
@@ -97,11 +148,20 @@ public class AvatarPlugin extends AbstractUIPlugin {
 			this.storeRegistration.unregister();
 			this.storeRegistration = null;
 		}
+		if (this.metricsRegistration != null) {
+			this.metricsRegistration.unregister();
+			this.metricsRegistration = null;
+		}
+		unregisterMetrics();
+		this.store.getRefreshScheduler().stop();
+		AvatarImageCache.setScaledStore(null);
 
 		try {
-			new AvatarFileStore(context.getBundle()).save(store);
+			this.fileStore.save(this.store);
 		} catch (IOException e) {
 			log(Messages.AvatarPlugin_ExceptionSavingStore, e);
+		} finally {
+			this.fileStore.close();
 		}
 	}
 
@@ -8,6 +8,8 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
+import java.io.File;
+
 import org.eclipse.jface.layout.GridLayoutFactory;
 import org.eclipse.jface.preference.PreferencePage;
 import org.eclipse.swt.SWT;
@@ -16,6 +18,7 @@ import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 
@@ -50,6 +53,22 @@ public class AvatarPreferencePage extends PreferencePage implements
 
 		});
 
+		Button prefetchButton = new Button(displayArea, SWT.PUSH);
+		prefetchButton
+				.setText(Messages.AvatarPreferencePage_PrefetchAvatarsText);
+		prefetchButton.addSelectionListener(new SelectionAdapter() {
+
+			public void widgetSelected(SelectionEvent e) {
+				FileDialog dialog = new FileDialog(getShell(), SWT.OPEN);
+				dialog.setText(Messages.AvatarPreferencePage_PrefetchDialogTitle);
+				String path = dialog.open();
+				if (path != null)
+					AvatarPlugin.getDefault().getAvatars()
+							.schedulePrefetch(new File(path));
+			}
+
+		});
+
 		return displayArea;
 	}
 
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * Scheduler that continuously revalidates stale avatars of a store in the
+ * background.
+ * <p>
+ * Avatars older than the maximum age are stale. Stale avatars are refreshed
+ * in order of how often they were recently accessed, weighted by how far past
+ * the maximum age they are, and refreshes are spread out evenly so that no
+ * more than the configured number of requests are made per minute. The store
+ * keeps serving the stale copy while it is being revalidated.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarRefreshScheduler {
+
+	/**
+	 * DEFAULT_MAX_AGE
+	 */
+	public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * DEFAULT_REQUESTS_PER_MINUTE
+	 */
+	public static final int DEFAULT_REQUESTS_PER_MINUTE = 30;
+
+	/**
+	 * Delay in milliseconds before looking for stale avatars again when none
+	 * were found
+	 */
+	public static final long IDLE_DELAY = 60 * 1000L;
+
+	/**
+	 * Stale avatar ranked for refresh
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final String key;
+		private final double score;
+
+		private Candidate(String key, double score) {
+			this.key = key;
+			this.score = score;
+		}
+
+		public int compareTo(Candidate other) {
+			return Double.compare(this.score, other.score);
+		}
+	}
+
+	private final AvatarStore store;
+	private final ConcurrentHashMap<String, AtomicInteger> accesses = new ConcurrentHashMap<String, AtomicInteger>();
+	private final LinkedList<String> queue = new LinkedList<String>();
+	private final Job job;
+	private volatile long maxAge = DEFAULT_MAX_AGE;
+	private volatile int requestsPerMinute = DEFAULT_REQUESTS_PER_MINUTE;
+	private volatile boolean running = false;
+
+	/**
+	 * Create refresh scheduler for store
+	 *
+	 * @param store
+	 */
+	public AvatarRefreshScheduler(AvatarStore store) {
+		Assert.isNotNull(store, "Store cannot be null"); //$NON-NLS-1$
+		this.store = store;
+		this.job = new Job(Messages.AvatarRefreshScheduler_JobName) {
+
+			protected IStatus run(IProgressMonitor monitor) {
+				if (!running)
+					return Status.OK_STATUS;
+				long delay = refreshNext();
+				if (running && !monitor.isCanceled())
+					schedule(delay);
+				return Status.OK_STATUS;
+			}
+		};
+		this.job.setSystem(true);
+		this.job.setPriority(Job.DECORATE);
+	}
+
+	/**
+	 * Set age after which avatars are refreshed
+	 *
+	 * @param maxAge
+	 *            in milliseconds
+	 * @return this scheduler
+	 */
+	public AvatarRefreshScheduler setMaxAge(long maxAge) {
+		this.maxAge = Math.max(1L, maxAge);
+		return this;
+	}
+
+	/**
+	 * Get age after which avatars are refreshed
+	 *
+	 * @return max age in milliseconds
+	 */
+	public long getMaxAge() {
+		return this.maxAge;
+	}
+
+	/**
+	 * Set maximum number of refresh requests made per minute
+	 *
+	 * @param requestsPerMinute
+	 * @return this scheduler
+	 */
+	public AvatarRefreshScheduler setRequestsPerMinute(int requestsPerMinute) {
+		this.requestsPerMinute = Math.max(1, requestsPerMinute);
+		return this;
+	}
+
+	/**
+	 * Get maximum number of refresh requests made per minute
+	 *
+	 * @return requests per minute
+	 */
+	public int getRequestsPerMinute() {
+		return this.requestsPerMinute;
+	}
+
+	/**
+	 * Start refreshing stale avatars in the background. The first refresh
+	 * happens after {@link #IDLE_DELAY} so it doesn't compete with startup.
+	 *
+	 * @return this scheduler
+	 */
+	public AvatarRefreshScheduler start() {
+		this.running = true;
+		this.job.schedule(IDLE_DELAY);
+		return this;
+	}
+
+	/**
+	 * Stop refreshing stale avatars
+	 *
+	 * @return this scheduler
+	 */
+	public AvatarRefreshScheduler stop() {
+		this.running = false;
+		this.job.cancel();
+		synchronized (this.queue) {
+			this.queue.clear();
+		}
+		return this;
+	}
+
+	/**
+	 * Is this scheduler running?
+	 *
+	 * @return true if running, false otherwise
+	 */
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Record access of avatar with the given key
+	 *
+	 * @param key
+	 */
+	void accessed(String key) {
+		AtomicInteger count = this.accesses.get(key);
+		if (count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = this.accesses.putIfAbsent(key, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Refresh the next stale avatar
+	 *
+	 * @return delay in milliseconds until the next refresh
+	 */
+	private long refreshNext() {
+		String key;
+		synchronized (this.queue) {
+			if (this.queue.isEmpty())
+				selectStale();
+			key = this.queue.poll();
+		}
+		if (key == null)
+			return IDLE_DELAY;
+		this.store.revalidate(key);
+		return 60 * 1000L / this.requestsPerMinute;
+	}
+
+	private double getScore(long age, String key) {
+		AtomicInteger count = this.accesses.get(key);
+		int recent = count != null ? count.get() : 0;
+		return (1 + recent) * ((double) age / this.maxAge);
+	}
+
+	/**
+	 * Queue up to a minute's worth of the highest ranked stale avatars. Must
+	 * be called while holding the queue lock.
+	 */
+	private void selectStale() {
+		int limit = this.requestsPerMinute;
+		long now = System.currentTimeMillis();
+		PriorityQueue<Candidate> selected = new PriorityQueue<Candidate>(
+				limit + 1);
+		Map<String, Avatar> cached = this.store.getCache().getAvatars();
+		for (Entry<String, Avatar> entry : cached.entrySet()) {
+			long age = now - entry.getValue().getUpdateTime();
+			if (age >= this.maxAge)
+				select(selected, limit,
+						new Candidate(entry.getKey(), getScore(age,
+								entry.getKey())));
+		}
+		IAvatarArchive archive = this.store.getArchive();
+		if (archive != null)
+			for (String key : archive.getHashes()) {
+				if (cached.containsKey(key))
+					continue;
+				long updateTime = archive.getUpdateTime(key);
+				long age = now - updateTime;
+				if (updateTime >= 0 && age >= this.maxAge)
+					select(selected, limit,
+							new Candidate(key, getScore(age, key)));
+			}
+
+		Candidate[] ranked = selected.toArray(new Candidate[selected.size()]);
+		Arrays.sort(ranked);
+		for (int i = ranked.length - 1; i >= 0; i--)
+			this.queue.add(ranked[i].key);
+
+		// Decay access counts so ranking follows recent use
+		Iterator<AtomicInteger> counts = this.accesses.values().iterator();
+		while (counts.hasNext()) {
+			AtomicInteger count = counts.next();
+			if (count.get() <= 1)
+				counts.remove();
+			else
+				count.set(count.get() / 2);
+		}
+	}
+
+	private void select(PriorityQueue<Candidate> selected, int limit,
+			Candidate candidate) {
+		if (selected.size() < limit)
+			selected.add(candidate);
+		else if (selected.peek().score < candidate.score) {
+			selected.poll();
+			selected.add(candidate);
+		}
+	}
+}
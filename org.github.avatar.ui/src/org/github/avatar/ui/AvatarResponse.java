@@ -0,0 +1,79 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+/**
+ * Response to an avatar request made by an {@link IAvatarTransport}
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarResponse {
+
+	private final int status;
+	private final String etag;
+	private final long lastModified;
+	private final byte[] body;
+
+	/**
+	 * Create response
+	 * 
+	 * @param status
+	 *            HTTP status code
+	 * @param etag
+	 *            entity tag, may be null
+	 * @param lastModified
+	 *            last modified time, 0 if unknown
+	 * @param body
+	 *            image bytes, may be null for responses other than 200
+	 */
+	public AvatarResponse(int status, String etag, long lastModified,
+			byte[] body) {
+		this.status = status;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.body = body;
+	}
+
+	/**
+	 * Get HTTP status code
+	 * 
+	 * @return status
+	 */
+	public int getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * Get entity tag
+	 * 
+	 * @return etag or null if not sent
+	 */
+	public String getEtag() {
+		return this.etag;
+	}
+
+	/**
+	 * Get last modified time
+	 * 
+	 * @return last modified time or 0 if not sent
+	 */
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	/**
+	 * Get response body. The returned array is not copied and must not be
+	 * modified.
+	 * 
+	 * @return body or null if none
+	 */
+	public byte[] getBody() {
+		return this.body;
+	}
+}
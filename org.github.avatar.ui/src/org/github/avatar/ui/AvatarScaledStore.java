@@ -0,0 +1,327 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.swt.graphics.ImageData;
+import org.osgi.framework.Bundle;
+
+/**
+ * Persistent store of pre-scaled avatar pixels so that images scaled in an
+ * earlier session are neither decoded nor scaled again.
+ * <p>
+ * Variants are stored one file per image content digest and pixel size.
+ * Sizes are the logical image sizes the variants are displayed at. Once the
+ * store grows past its maximum size the least recently used variants are
+ * deleted until it is back at three quarters of it, so that the following
+ * writes do not have to trim again.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarScaledStore {
+
+	/**
+	 * DEFAULT_DIRECTORY_NAME
+	 */
+	public static final String DEFAULT_DIRECTORY_NAME = "scaled"; //$NON-NLS-1$
+
+	/**
+	 * DEFAULT_MAX_BYTES
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * VERSION
+	 */
+	public static final int VERSION = 1;
+
+	private static final String SUFFIX = ".px"; //$NON-NLS-1$
+
+	private static final String TEMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+	/**
+	 * Marker written at the start of every variant file
+	 */
+	private static final int MAGIC = 0x41565058;
+
+	/**
+	 * Largest variant that is stored
+	 */
+	private static final int MAX_SIZE = 4096;
+
+	/**
+	 * Percentage of the maximum size that trimming shrinks the store to
+	 */
+	private static final int TRIM_PERCENT = 75;
+
+	/**
+	 * Age in milliseconds after which temporary files are no longer being
+	 * written and are deleted when trimming
+	 */
+	private static final long STALE_TEMP_AGE = 60 * 1000L;
+
+	private final File directory;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long bytes = -1L;
+
+	/**
+	 * Create scaled store
+	 *
+	 * @param directory
+	 */
+	public AvatarScaledStore(File directory) {
+		Assert.isNotNull(directory, "Directory cannot be null"); //$NON-NLS-1$
+		this.directory = directory;
+	}
+
+	/**
+	 * Create scaled store in bundle state location with default name
+	 *
+	 * @param bundle
+	 */
+	public AvatarScaledStore(Bundle bundle) {
+		this(Platform.getStateLocation(bundle).append(DEFAULT_DIRECTORY_NAME)
+				.toFile());
+	}
+
+	/**
+	 * Set maximum number of bytes used by stored variants
+	 *
+	 * @param maxBytes
+	 * @return this store
+	 */
+	public synchronized AvatarScaledStore setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0L, maxBytes);
+		return this;
+	}
+
+	/**
+	 * Get maximum number of bytes used by stored variants
+	 *
+	 * @return max bytes
+	 */
+	public synchronized long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * Get number of bytes used by stored variants
+	 *
+	 * @return byte count
+	 */
+	public synchronized long getByteCount() {
+		if (this.bytes < 0) {
+			long total = 0L;
+			for (File file : listVariants())
+				total += file.length();
+			this.bytes = total;
+		}
+		return this.bytes;
+	}
+
+	private File[] listVariants() {
+		File[] files = this.directory.listFiles();
+		if (files == null)
+			return new File[0];
+		int count = 0;
+		for (File file : files)
+			if (file.getName().endsWith(SUFFIX))
+				files[count++] = file;
+		return Arrays.copyOf(files, count);
+	}
+
+	private File getFile(String digest, int size) {
+		return new File(this.directory, digest + '-' + size + SUFFIX);
+	}
+
+	/**
+	 * Read scaled variant
+	 *
+	 * @param digest
+	 *            of the avatar's image data
+	 * @param size
+	 *            in pixels
+	 * @return image data or null if not stored or unreadable
+	 */
+	public ImageData read(String digest, int size) {
+		File file = getFile(digest, size);
+		if (!file.isFile())
+			return null;
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (stream.readInt() != MAGIC || stream.readInt() != VERSION)
+				return null;
+			int width = stream.readInt();
+			int height = stream.readInt();
+			int length = stream.readInt();
+			if (width != size || height != size || length < 0
+					|| length > size * size * 4)
+				return null;
+			byte[] data = new byte[length];
+			stream.readFully(data);
+			byte[] alphas = null;
+			if (stream.readBoolean()) {
+				alphas = new byte[width * height];
+				stream.readFully(alphas);
+			}
+			ImageData image = new ImageData(width, height,
+					AvatarScaler.DEPTH, AvatarScaler.PALETTE,
+					AvatarScaler.SCANLINE_PAD, data);
+			image.alphaData = alphas;
+			// Keeps recently read variants from being trimmed
+			file.setLastModified(System.currentTimeMillis());
+			return image;
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		} catch (IllegalArgumentException e) {
+			file.delete();
+			return null;
+		} finally {
+			if (stream != null)
+				try {
+					stream.close();
+				} catch (IOException ignore) {
+					// Ignored
+				}
+		}
+	}
+
+	/**
+	 * Write scaled variant. Only image data created by {@link AvatarScaler}
+	 * is stored.
+	 *
+	 * @param digest
+	 *            of the avatar's image data
+	 * @param data
+	 * @throws IOException
+	 */
+	public void write(String digest, ImageData data) throws IOException {
+		Assert.isNotNull(digest, "Digest cannot be null"); //$NON-NLS-1$
+		Assert.isNotNull(data, "Data cannot be null"); //$NON-NLS-1$
+		if (data.width != data.height || data.width > MAX_SIZE
+				|| data.depth != AvatarScaler.DEPTH
+				|| data.palette != AvatarScaler.PALETTE)
+			return;
+		if (!this.directory.isDirectory() && !this.directory.mkdirs())
+			throw new IOException(this.directory.getAbsolutePath());
+
+		File file = getFile(digest, data.width);
+		File temp = File.createTempFile(file.getName(), TEMP_SUFFIX,
+				this.directory);
+		boolean written = false;
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(temp);
+			DataOutputStream stream = new DataOutputStream(
+					new BufferedOutputStream(output));
+			stream.writeInt(MAGIC);
+			stream.writeInt(VERSION);
+			stream.writeInt(data.width);
+			stream.writeInt(data.height);
+			stream.writeInt(data.data.length);
+			stream.write(data.data);
+			stream.writeBoolean(data.alphaData != null);
+			if (data.alphaData != null)
+				stream.write(data.alphaData);
+			stream.flush();
+			output.close();
+			written = true;
+		} finally {
+			if (!written) {
+				if (output != null)
+					try {
+						output.close();
+					} catch (IOException ignore) {
+						// Ignored
+					}
+				temp.delete();
+			}
+		}
+
+		long previous = file.length();
+		if (!temp.renameTo(file)
+				&& !(file.delete() && temp.renameTo(file))) {
+			temp.delete();
+			throw new IOException(file.getAbsolutePath());
+		}
+		added(file.length() - previous);
+	}
+
+	private synchronized void added(long length) {
+		if (this.bytes < 0)
+			getByteCount();
+		else
+			this.bytes += length;
+		if (this.bytes > this.maxBytes)
+			trim();
+	}
+
+	/**
+	 * Delete temporary files left behind by writes that did not complete
+	 */
+	private void deleteStaleTemps() {
+		File[] files = this.directory.listFiles();
+		if (files == null)
+			return;
+		long stale = System.currentTimeMillis() - STALE_TEMP_AGE;
+		for (File file : files)
+			if (file.getName().endsWith(TEMP_SUFFIX)
+					&& file.lastModified() < stale)
+				file.delete();
+	}
+
+	/**
+	 * Delete least recently used variants if the store is larger than its
+	 * maximum size, until it is at three quarters of it. Temporary files of
+	 * writes that did not complete are deleted as well.
+	 *
+	 * @return this store
+	 */
+	public synchronized AvatarScaledStore trim() {
+		deleteStaleTemps();
+		File[] files = listVariants();
+		long total = 0L;
+		for (File file : files)
+			total += file.length();
+		if (total > this.maxBytes) {
+			long target = this.maxBytes / 100 * TRIM_PERCENT;
+			Arrays.sort(files, new Comparator<File>() {
+
+				public int compare(File file1, File file2) {
+					long modified1 = file1.lastModified();
+					long modified2 = file2.lastModified();
+					return modified1 < modified2 ? -1
+							: modified1 > modified2 ? 1 : 0;
+				}
+			});
+			for (int i = 0; i < files.length && total > target; i++) {
+				long length = files[i].length();
+				if (files[i].delete())
+					total -= length;
+			}
+		}
+		this.bytes = total;
+		return this;
+	}
+}
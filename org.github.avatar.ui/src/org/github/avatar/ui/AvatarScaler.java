@@ -0,0 +1,272 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+
+/**
+ * Scaler that resamples {@link ImageData} directly without a display, so it
+ * can be used from any thread.
+ * <p>
+ * Images are scaled down by averaging the area of source pixels covered by
+ * every target pixel and scaled up by bilinear interpolation. Colors are
+ * weighted by alpha so transparent pixels do not bleed into their
+ * neighbors. Scaled images are 24-bit direct color images with an alpha
+ * channel if the source has any transparency.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public final class AvatarScaler {
+
+	/**
+	 * Palette of scaled images
+	 */
+	public static final PaletteData PALETTE = new PaletteData(0xFF0000,
+			0xFF00, 0xFF);
+
+	/**
+	 * Depth of scaled images
+	 */
+	public static final int DEPTH = 24;
+
+	/**
+	 * Scanline pad of scaled images
+	 */
+	public static final int SCANLINE_PAD = 4;
+
+	/**
+	 * Source pixels contributing to a target pixel along one axis
+	 */
+	private static class Contributions {
+
+		private final int[] start;
+		private final float[][] weights;
+
+		private Contributions(int count) {
+			this.start = new int[count];
+			this.weights = new float[count][];
+		}
+	}
+
+	private AvatarScaler() {
+	}
+
+	/**
+	 * Scale image data
+	 *
+	 * @param source
+	 * @param width
+	 * @param height
+	 * @return scaled image data
+	 */
+	public static ImageData scale(ImageData source, int width, int height) {
+		Assert.isNotNull(source, "Source cannot be null"); //$NON-NLS-1$
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+
+		int sourceWidth = source.width;
+		int sourceHeight = source.height;
+		float[] pixels = readPremultiplied(source);
+		Contributions columns = getContributions(sourceWidth, width);
+		Contributions rows = getContributions(sourceHeight, height);
+
+		// Scale horizontally into a width x sourceHeight buffer
+		float[] horizontal = new float[width * sourceHeight * 4];
+		for (int y = 0; y < sourceHeight; y++) {
+			int sourceRow = y * sourceWidth;
+			int targetRow = y * width;
+			for (int x = 0; x < width; x++) {
+				float[] weights = columns.weights[x];
+				int offset = (sourceRow + columns.start[x]) * 4;
+				float a = 0, r = 0, g = 0, b = 0;
+				for (int i = 0; i < weights.length; i++, offset += 4) {
+					float weight = weights[i];
+					a += pixels[offset] * weight;
+					r += pixels[offset + 1] * weight;
+					g += pixels[offset + 2] * weight;
+					b += pixels[offset + 3] * weight;
+				}
+				int target = (targetRow + x) * 4;
+				horizontal[target] = a;
+				horizontal[target + 1] = r;
+				horizontal[target + 2] = g;
+				horizontal[target + 3] = b;
+			}
+		}
+
+		// Scale vertically into the target image
+		int bytesPerLine = (((width * DEPTH + 7) / 8) + (SCANLINE_PAD - 1))
+				/ SCANLINE_PAD * SCANLINE_PAD;
+		byte[] data = new byte[bytesPerLine * height];
+		byte[] alphas = new byte[width * height];
+		boolean opaque = true;
+		for (int y = 0; y < height; y++) {
+			float[] weights = rows.weights[y];
+			int first = rows.start[y];
+			int line = y * bytesPerLine;
+			for (int x = 0; x < width; x++) {
+				float a = 0, r = 0, g = 0, b = 0;
+				int offset = (first * width + x) * 4;
+				for (int i = 0; i < weights.length; i++, offset += width * 4) {
+					float weight = weights[i];
+					a += horizontal[offset] * weight;
+					r += horizontal[offset + 1] * weight;
+					g += horizontal[offset + 2] * weight;
+					b += horizontal[offset + 3] * weight;
+				}
+				int alpha = clamp(a);
+				if (alpha < 255)
+					opaque = false;
+				alphas[y * width + x] = (byte) alpha;
+				int target = line + x * 3;
+				if (alpha > 0) {
+					float unpremultiply = 255F / a;
+					data[target] = (byte) clamp(r * unpremultiply);
+					data[target + 1] = (byte) clamp(g * unpremultiply);
+					data[target + 2] = (byte) clamp(b * unpremultiply);
+				}
+			}
+		}
+
+		ImageData scaled = new ImageData(width, height, DEPTH, PALETTE,
+				SCANLINE_PAD, data);
+		if (!opaque)
+			scaled.alphaData = alphas;
+		return scaled;
+	}
+
+	private static int clamp(float value) {
+		int rounded = (int) (value + 0.5F);
+		return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+	}
+
+	/**
+	 * Get weights of source pixels for every target pixel. Every target
+	 * pixel averages the source pixels it covers when scaling down and
+	 * interpolates between the two nearest source pixels otherwise.
+	 *
+	 * @param sourceLength
+	 * @param targetLength
+	 * @return contributions
+	 */
+	private static Contributions getContributions(int sourceLength,
+			int targetLength) {
+		Contributions contributions = new Contributions(targetLength);
+		float scale = (float) sourceLength / targetLength;
+		for (int i = 0; i < targetLength; i++) {
+			if (scale > 1F) {
+				float left = i * scale;
+				float right = Math.min(sourceLength, left + scale);
+				int first = (int) left;
+				int last = Math.min(sourceLength - 1,
+						(int) Math.ceil(right) - 1);
+				float[] weights = new float[last - first + 1];
+				for (int j = first; j <= last; j++)
+					weights[j - first] = (Math.min(right, j + 1) - Math.max(
+							left, j))
+							/ scale;
+				contributions.start[i] = first;
+				contributions.weights[i] = weights;
+			} else {
+				float center = (i + 0.5F) * scale - 0.5F;
+				int left = (int) Math.floor(center);
+				float fraction = center - left;
+				if (left < 0) {
+					left = 0;
+					fraction = 0F;
+				}
+				if (left >= sourceLength - 1) {
+					contributions.start[i] = sourceLength - 1;
+					contributions.weights[i] = new float[] { 1F };
+				} else {
+					contributions.start[i] = left;
+					contributions.weights[i] = new float[] { 1F - fraction,
+							fraction };
+				}
+			}
+		}
+		return contributions;
+	}
+
+	/**
+	 * Read pixels of image data as alpha premultiplied components
+	 *
+	 * @param source
+	 * @return alpha, red, green and blue of every pixel in row order
+	 */
+	private static float[] readPremultiplied(ImageData source) {
+		int width = source.width;
+		int height = source.height;
+		PaletteData palette = source.palette;
+
+		int[] colors = null;
+		if (!palette.isDirect) {
+			RGB[] rgbs = palette.getRGBs();
+			colors = new int[rgbs != null ? rgbs.length : 0];
+			for (int i = 0; i < colors.length; i++)
+				colors[i] = rgbs[i].red << 16 | rgbs[i].green << 8
+						| rgbs[i].blue;
+		}
+
+		int transparency = source.getTransparencyType();
+		ImageData mask = transparency == SWT.TRANSPARENCY_MASK
+				|| transparency == SWT.TRANSPARENCY_PIXEL ? source
+				.getTransparencyMask() : null;
+
+		float[] pixels = new float[width * height * 4];
+		int[] row = new int[width];
+		byte[] alphas = new byte[width];
+		int[] maskRow = mask != null ? new int[width] : null;
+		// Alphas only reflect per-pixel alpha data, not a global alpha
+		int globalAlpha = source.alphaData == null && source.alpha != -1 ? source.alpha
+				: -1;
+		for (int y = 0; y < height; y++) {
+			source.getPixels(0, y, width, row, 0);
+			source.getAlphas(0, y, width, alphas, 0);
+			if (mask != null)
+				mask.getPixels(0, y, width, maskRow, 0);
+			int offset = y * width * 4;
+			for (int x = 0; x < width; x++, offset += 4) {
+				int pixel = row[x];
+				int red, green, blue;
+				if (colors != null) {
+					int color = pixel >= 0 && pixel < colors.length ? colors[pixel]
+							: 0;
+					red = color >>> 16 & 0xFF;
+					green = color >>> 8 & 0xFF;
+					blue = color & 0xFF;
+				} else {
+					red = component(pixel, palette.redMask, palette.redShift);
+					green = component(pixel, palette.greenMask,
+							palette.greenShift);
+					blue = component(pixel, palette.blueMask,
+							palette.blueShift);
+				}
+				int alpha = globalAlpha != -1 ? globalAlpha : alphas[x] & 0xFF;
+				if (maskRow != null && maskRow[x] == 0)
+					alpha = 0;
+				float weight = alpha / 255F;
+				pixels[offset] = alpha;
+				pixels[offset + 1] = red * weight;
+				pixels[offset + 2] = green * weight;
+				pixels[offset + 3] = blue * weight;
+			}
+		}
+		return pixels;
+	}
+
+	private static int component(int pixel, int mask, int shift) {
+		int value = pixel & mask;
+		return (shift < 0 ? value >>> -shift : value << shift) & 0xFF;
+	}
+}
@@ -0,0 +1,527 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Arena that keeps avatar image data outside of the Java heap in slabs of
+ * direct buffers. Avatars stored in an arena only hold a small handle to
+ * their data so a large cache no longer adds to the heap that every full
+ * garbage collection has to scan and copy.
+ * <p>
+ * Data is allocated sequentially within a slab and a slab is reused once all
+ * of its data has been freed. Data is freed once neither its handle nor any
+ * buffer viewing it is reachable anymore, so a buffer or stream obtained from
+ * an avatar stays valid even if the avatar itself is dropped while reading.
+ * <p>
+ * Total capacity is capped. Before another slab would be allocated while most
+ * of the capacity is unused, or once the cap is reached, data of sparse slabs
+ * that is not currently viewed is moved together and its handles are
+ * re-pointed, freeing slabs that a few long-lived avatars would otherwise pin.
+ * Data that still does not fit is left on the heap.
+ * <p>
+ * Avatars with identical image data share a single handle.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarSlabArena {
+
+	/**
+	 * DEFAULT_SLAB_SIZE
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * DEFAULT_MAX_CAPACITY
+	 */
+	public static final long DEFAULT_MAX_CAPACITY = 64 * 1024 * 1024;
+
+	/**
+	 * Orders slabs by the number of bytes they hold
+	 */
+	private static final Comparator<Slab> SPARSEST_FIRST = new Comparator<Slab>() {
+
+		public int compare(Slab s1, Slab s2) {
+			return s1.bytes < s2.bytes ? -1 : (s1.bytes == s2.bytes ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Direct buffer that data is allocated from
+	 */
+	private static class Slab {
+
+		private final ByteBuffer buffer;
+		private volatile int generation = 0;
+		private int position = 0;
+		private int allocations = 0;
+		private int bytes = 0;
+
+		private Slab(int capacity) {
+			this.buffer = ByteBuffer.allocateDirect(capacity);
+		}
+
+		private void recycle() {
+			this.position = 0;
+			this.generation++;
+		}
+	}
+
+	/**
+	 * Handle to image data held in an arena
+	 */
+	static final class Handle {
+
+		private final AvatarSlabArena arena;
+		private final int length;
+		private Region region;
+
+		private Handle(AvatarSlabArena arena, int length) {
+			this.arena = arena;
+			this.length = length;
+		}
+
+		/**
+		 * Get length of data
+		 *
+		 * @return number of bytes
+		 */
+		int getLength() {
+			return this.length;
+		}
+
+		/**
+		 * Get read-only view of data. The data is not freed or moved while the
+		 * returned buffer is reachable.
+		 *
+		 * @return buffer positioned at the start of the data
+		 */
+		ByteBuffer getBuffer() {
+			return this.arena.pin(this);
+		}
+
+		/**
+		 * Copy data into a new array
+		 *
+		 * @return non-null array
+		 */
+		byte[] read() {
+			byte[] bytes = new byte[this.length];
+			getBuffer().get(bytes);
+			return bytes;
+		}
+	}
+
+	/**
+	 * Allocated data that is freed once neither its handle nor any view of it
+	 * is referenced. The location of data that is not viewed may change when
+	 * slabs are compacted, it must only be accessed while holding the lock on
+	 * the arena.
+	 */
+	private static class Region extends WeakReference<Handle> {
+
+		private final int length;
+		private final String digest;
+		private Slab slab;
+		private int offset;
+		private int generation;
+		private boolean unreferenced = false;
+		private int views = 0;
+
+		private Region(Handle handle, Slab slab, int offset, String digest,
+				ReferenceQueue<Handle> queue) {
+			super(handle, queue);
+			this.length = handle.length;
+			this.digest = digest;
+			this.slab = slab;
+			this.offset = offset;
+			this.generation = slab.generation;
+			handle.region = this;
+		}
+
+		/**
+		 * Get unpinned view of data. The view must not escape the lock on the
+		 * arena.
+		 *
+		 * @return buffer positioned at the start of the data
+		 */
+		private ByteBuffer slice() {
+			if (this.slab.generation != this.generation)
+				throw new IllegalStateException(
+						"Avatar data has been freed"); //$NON-NLS-1$
+			ByteBuffer buffer = this.slab.buffer.asReadOnlyBuffer();
+			buffer.limit(this.offset + this.length);
+			buffer.position(this.offset);
+			return buffer.slice();
+		}
+	}
+
+	/**
+	 * Buffer viewing the data of a region that keeps the data from being freed
+	 * while the buffer is referenced
+	 */
+	private static class View extends WeakReference<ByteBuffer> {
+
+		private final Region region;
+
+		private View(ByteBuffer buffer, Region region,
+				ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.region = region;
+		}
+	}
+
+	private final int slabSize;
+	private final List<Slab> slabs = new ArrayList<Slab>();
+	private final Set<Region> regions = new HashSet<Region>();
+	private final Map<String, Region> contents = new HashMap<String, Region>();
+	private final Set<View> views = new HashSet<View>();
+	private final ReferenceQueue<Handle> unreferenced = new ReferenceQueue<Handle>();
+	private final ReferenceQueue<ByteBuffer> released = new ReferenceQueue<ByteBuffer>();
+	private Slab current;
+	private long maxCapacity = DEFAULT_MAX_CAPACITY;
+	private long capacity = 0L;
+	private long bytes = 0L;
+
+	/**
+	 * Create arena with default slab size
+	 */
+	public AvatarSlabArena() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Create arena. Data larger than a slab is given a slab of its own.
+	 *
+	 * @param slabSize
+	 */
+	public AvatarSlabArena(int slabSize) {
+		this.slabSize = Math.max(1, slabSize);
+	}
+
+	/**
+	 * Set maximum number of bytes allocated outside of the heap for slabs.
+	 * Slabs already allocated are kept until they are empty.
+	 *
+	 * @param maxCapacity
+	 * @return this arena
+	 */
+	public synchronized AvatarSlabArena setMaxCapacity(long maxCapacity) {
+		this.maxCapacity = Math.max(0L, maxCapacity);
+		return this;
+	}
+
+	/**
+	 * Get maximum number of bytes allocated outside of the heap for slabs
+	 *
+	 * @return max capacity
+	 */
+	public synchronized long getMaxCapacity() {
+		return this.maxCapacity;
+	}
+
+	/**
+	 * Get number of bytes allocated outside of the heap for slabs
+	 *
+	 * @return capacity
+	 */
+	public synchronized long getCapacity() {
+		purge();
+		return this.capacity;
+	}
+
+	/**
+	 * Get number of bytes of image data currently held
+	 *
+	 * @return byte count
+	 */
+	public synchronized long getByteCount() {
+		purge();
+		return this.bytes;
+	}
+
+	/**
+	 * Get number of slabs currently allocated
+	 *
+	 * @return slab count
+	 */
+	public synchronized int getSlabCount() {
+		purge();
+		return this.slabs.size();
+	}
+
+	/**
+	 * Store avatar's image data in this arena
+	 *
+	 * @param avatar
+	 * @return avatar referencing data held in this arena, or the given avatar
+	 *         if the arena is full
+	 */
+	Avatar store(Avatar avatar) {
+		if (avatar.isStoredIn(this))
+			return avatar;
+		String digest = avatar.getDigest();
+		ByteBuffer data = avatar.getBuffer();
+		synchronized (this) {
+			purge();
+			Region region = digest != null ? this.contents.get(digest) : null;
+			Handle handle = region != null ? region.get() : null;
+			// Only share data that is identical
+			if (handle == null || !region.slice().equals(data)) {
+				handle = allocate(data, digest);
+				if (handle == null)
+					return avatar;
+				this.regions.add(handle.region);
+				if (digest != null)
+					this.contents.put(digest, handle.region);
+			}
+			return avatar.store(this, handle);
+		}
+	}
+
+	/**
+	 * Create view of handle's data that keeps the data from being freed or
+	 * moved while the view is referenced
+	 *
+	 * @param handle
+	 * @return buffer positioned at the start of the data
+	 */
+	private synchronized ByteBuffer pin(Handle handle) {
+		purge();
+		Region region = handle.region;
+		ByteBuffer buffer = region.slice();
+		region.views++;
+		this.views.add(new View(buffer, region, this.released));
+		return buffer;
+	}
+
+	/**
+	 * Allocate and copy data. Must be called while holding the lock on this
+	 * arena.
+	 *
+	 * @param data
+	 * @param digest
+	 * @return handle or null if the maximum capacity is reached
+	 */
+	private Handle allocate(ByteBuffer data, String digest) {
+		int length = data.remaining();
+		Slab slab;
+		if (length > this.slabSize) {
+			if (this.capacity + length > this.maxCapacity)
+				return null;
+			slab = new Slab(length);
+			this.slabs.add(slab);
+			this.capacity += length;
+		} else {
+			if (this.current == null
+					|| this.current.position + length > this.slabSize) {
+				Slab free = getFreeSlab();
+				if (free == null)
+					return null;
+				this.current = free;
+			}
+			slab = this.current;
+		}
+		ByteBuffer target = slab.buffer.duplicate();
+		target.position(slab.position);
+		target.put(data);
+		Handle handle = new Handle(this, length);
+		new Region(handle, slab, slab.position, digest, this.unreferenced);
+		slab.position += length;
+		slab.allocations++;
+		slab.bytes += length;
+		this.bytes += length;
+		return handle;
+	}
+
+	/**
+	 * Get empty slab, compacting sparse slabs when most of the capacity is
+	 * unused or the maximum capacity is reached
+	 *
+	 * @return slab or null if none is available
+	 */
+	private Slab getFreeSlab() {
+		for (Slab slab : this.slabs)
+			if (slab.allocations == 0 && slab != this.current
+					&& slab.buffer.capacity() == this.slabSize) {
+				slab.recycle();
+				return slab;
+			}
+		boolean full = this.capacity + this.slabSize > this.maxCapacity;
+		if (full || this.bytes < this.capacity / 2) {
+			Slab slab = compact();
+			if (slab != null)
+				return slab;
+		}
+		if (full)
+			return null;
+		Slab slab = new Slab(this.slabSize);
+		this.slabs.add(slab);
+		this.capacity += this.slabSize;
+		return slab;
+	}
+
+	/**
+	 * Move data of the sparsest slabs into the sparsest one of them. Slabs
+	 * with data that is viewed or whose handle is being cleared are skipped.
+	 * Must be called while holding the lock on this arena.
+	 *
+	 * @return slab that was emptied or null if none could be
+	 */
+	private Slab compact() {
+		Map<Slab, List<Region>> movable = new HashMap<Slab, List<Region>>();
+		Set<Slab> pinned = new HashSet<Slab>();
+		for (Region region : this.regions) {
+			Slab slab = region.slab;
+			if (slab == this.current || slab.buffer.capacity() != this.slabSize)
+				continue;
+			if (region.views > 0 || region.get() == null) {
+				pinned.add(slab);
+				continue;
+			}
+			List<Region> held = movable.get(slab);
+			if (held == null) {
+				held = new ArrayList<Region>();
+				movable.put(slab, held);
+			}
+			held.add(region);
+		}
+		movable.keySet().removeAll(pinned);
+		if (movable.size() < 2)
+			return null;
+		List<Slab> sparse = new ArrayList<Slab>(movable.keySet());
+		Collections.sort(sparse, SPARSEST_FIRST);
+		Slab target = sparse.get(0);
+		if (target.bytes + sparse.get(1).bytes > this.slabSize)
+			return null;
+
+		// Slide the target's own data to its start before filling it up
+		List<Region> own = movable.get(target);
+		Collections.sort(own, new Comparator<Region>() {
+
+			public int compare(Region r1, Region r2) {
+				return r1.offset - r2.offset;
+			}
+		});
+		target.position = 0;
+		for (Region region : own)
+			move(region, target);
+
+		Slab emptied = null;
+		for (int i = 1; i < sparse.size(); i++) {
+			Slab slab = sparse.get(i);
+			if (target.position + slab.bytes > this.slabSize)
+				break;
+			for (Region region : movable.get(slab))
+				move(region, target);
+			if (emptied == null)
+				emptied = slab;
+			else
+				release(slab);
+		}
+		emptied.recycle();
+		return emptied;
+	}
+
+	/**
+	 * Copy region's data to the end of target slab and re-point the region
+	 *
+	 * @param region
+	 * @param target
+	 */
+	private void move(Region region, Slab target) {
+		byte[] data = new byte[region.length];
+		ByteBuffer source = region.slab.buffer.duplicate();
+		source.position(region.offset);
+		source.get(data);
+		ByteBuffer destination = target.buffer.duplicate();
+		destination.position(target.position);
+		destination.put(data);
+		if (region.slab != target) {
+			region.slab.allocations--;
+			region.slab.bytes -= region.length;
+			target.allocations++;
+			target.bytes += region.length;
+			region.slab = target;
+		}
+		region.offset = target.position;
+		region.generation = target.generation;
+		target.position += region.length;
+	}
+
+	/**
+	 * Free data of handles no longer referenced once the last view of it has
+	 * been released. Empty slabs are kept for reuse, except for oversized ones
+	 * and all but one spare slab. Must be called while holding the lock on this
+	 * arena.
+	 */
+	private void purge() {
+		Region region;
+		while ((region = (Region) this.unreferenced.poll()) != null) {
+			region.unreferenced = true;
+			if (region.views == 0)
+				free(region);
+		}
+		View view;
+		while ((view = (View) this.released.poll()) != null) {
+			this.views.remove(view);
+			region = view.region;
+			if (--region.views == 0 && region.unreferenced)
+				free(region);
+		}
+	}
+
+	private void free(Region region) {
+		this.regions.remove(region);
+		if (region.digest != null && this.contents.get(region.digest) == region)
+			this.contents.remove(region.digest);
+		this.bytes -= region.length;
+		Slab slab = region.slab;
+		slab.bytes -= region.length;
+		if (--slab.allocations > 0)
+			return;
+		if (slab == this.current)
+			slab.recycle();
+		else if (slab.buffer.capacity() != this.slabSize
+				|| hasSpareSlab(slab))
+			release(slab);
+	}
+
+	private boolean hasSpareSlab(Slab except) {
+		for (Slab slab : this.slabs)
+			if (slab != except && slab != this.current
+					&& slab.allocations == 0)
+				return true;
+		return false;
+	}
+
+	private void release(Slab slab) {
+		Iterator<Slab> iter = this.slabs.iterator();
+		while (iter.hasNext())
+			if (iter.next() == slab) {
+				iter.remove();
+				// Invalidate handles that might still reach this slab
+				slab.generation++;
+				this.capacity -= slab.buffer.capacity();
+				return;
+			}
+	}
+}
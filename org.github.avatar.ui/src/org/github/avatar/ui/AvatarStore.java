@@ -8,22 +8,36 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.math.BigInteger;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.eclipse.core.runtime.Assert;
@@ -77,6 +91,16 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 */
 	public static final int BUFFER_SIZE = 8192;
 
+	/**
+	 * HEADER_ETAG
+	 */
+	public static final String HEADER_ETAG = "ETag"; //$NON-NLS-1$
+
+	/**
+	 * HEADER_IF_NONE_MATCH
+	 */
+	public static final String HEADER_IF_NONE_MATCH = "If-None-Match"; //$NON-NLS-1$
+
 	/**
 	 * serialVersionUID
 	 */
@@ -87,9 +111,161 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 */
 	public static final Charset CHARSET = Charset.forName("CP1252"); //$NON-NLS-1$
 
+	/**
+	 * Load of a single hash that any number of requesters wait on
+	 */
+	private static class PendingLoad {
+
+		private final List<LoadRequest> requests = new ArrayList<LoadRequest>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Runnable fetch;
+		private boolean archived;
+		private volatile Avatar avatar;
+		private volatile IOException error;
+
+		private int getPriority() {
+			int priority = IAvatarRequest.PRIORITY_BACKGROUND;
+			for (LoadRequest request : this.requests)
+				priority = Math.max(priority, request.priority);
+			return priority;
+		}
+	}
+
+	/**
+	 * Request waiting on a pending load
+	 */
+	private class LoadRequest implements IAvatarRequest {
+
+		private final String key;
+		private final IAvatarCallback callback;
+		private final Runnable completion;
+		private PendingLoad load;
+		private volatile int priority;
+		private volatile boolean cancelled;
+		private volatile boolean done;
+
+		private LoadRequest(String key, int priority, IAvatarCallback callback,
+				Runnable completion) {
+			this.key = key;
+			this.priority = priority;
+			this.callback = callback;
+			this.completion = completion;
+		}
+
+		public boolean cancel() {
+			return cancelRequest(this);
+		}
+
+		public IAvatarRequest setPriority(int priority) {
+			this.priority = priority;
+			prioritize(this);
+			return this;
+		}
+
+		public int getPriority() {
+			return this.priority;
+		}
+
+		public boolean isDone() {
+			return this.done;
+		}
+
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+	}
+
+	/**
+	 * Query parameter used to request an avatar at a specific size
+	 */
+	public static final String SIZE_PARAMETER = "s"; //$NON-NLS-1$
+
+	/**
+	 * Separator between hash and size in the key of a sized avatar variant
+	 */
+	public static final char SIZE_SEPARATOR = '@';
+
+	/**
+	 * Standard sizes avatars are requested at, requested sizes are rounded up
+	 * to the nearest one so that consumers share variants
+	 */
+	private static final int[] SIZES = { 16, 24, 32, 48, 64, 80, 96, 128, 256,
+			512 };
+
+	/**
+	 * Interval in milliseconds that refresh progress is polled at
+	 */
+	private static final long REFRESH_POLL_INTERVAL = 250L;
+
+	/**
+	 * Maximum number of prefetches in flight at once, kept low so that
+	 * prefetching never crowds out avatars requested for display
+	 */
+	private static final int PREFETCH_WINDOW = 2;
+
+	/**
+	 * Iterator over the lines of a reader that remembers the first read
+	 * failure instead of throwing it
+	 */
+	private static class LineIterator implements Iterator<String> {
+
+		private final BufferedReader reader;
+		private String next;
+		private IOException error;
+
+		private LineIterator(BufferedReader reader) {
+			this.reader = reader;
+			advance();
+		}
+
+		private void advance() {
+			try {
+				this.next = this.reader.readLine();
+			} catch (IOException e) {
+				this.error = e;
+				this.next = null;
+			}
+		}
+
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		public String next() {
+			if (this.next == null)
+				throw new NoSuchElementException();
+			String line = this.next;
+			advance();
+			return line;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Serialized fields, avatars are written as a map to stay compatible with
+	 * stores persisted before the bounded cache was introduced
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("lastRefresh", long.class), //$NON-NLS-1$
+			new ObjectStreamField("url", String.class), //$NON-NLS-1$
+			new ObjectStreamField("avatars", Map.class) }; //$NON-NLS-1$
+
 	private long lastRefresh = 0L;
 	private String url;
-	private Map<String, Avatar> avatars;
+	private transient AvatarCache avatars;
+	private transient volatile IAvatarArchive archive;
+	private transient String host;
+	private transient AvatarFetchScheduler scheduler;
+	private transient IAvatarTransport transport;
+	private transient Map<String, PendingLoad> loads;
+	private transient AvatarHashCache hashes;
+	private transient AvatarStoreMetrics metrics;
+	private transient AvatarNegativeCache failures;
+	private transient AvatarRefreshScheduler refresher;
+	private transient volatile AvatarSlabArena arena;
 
 	/**
 	 * Create avatar store
@@ -109,8 +285,270 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 		if (!url.endsWith("/")) //$NON-NLS-1$
 			url += "/"; //$NON-NLS-1$
 		this.url = url;
-		this.avatars = Collections
-				.synchronizedMap(new HashMap<String, Avatar>());
+		this.avatars = new AvatarCache();
+		this.host = parseHost(url);
+		this.loads = new HashMap<String, PendingLoad>();
+		this.hashes = new AvatarHashCache();
+		this.metrics = new AvatarStoreMetrics(this);
+		this.failures = new AvatarNegativeCache();
+		this.refresher = new AvatarRefreshScheduler(this);
+	}
+
+	private void writeObject(ObjectOutputStream stream) throws IOException {
+		ObjectOutputStream.PutField fields = stream.putFields();
+		fields.put("lastRefresh", this.lastRefresh); //$NON-NLS-1$
+		fields.put("url", this.url); //$NON-NLS-1$
+		Map<String, Avatar> saved = new HashMap<String, Avatar>(
+				this.avatars.getAvatars());
+		fields.put("avatars", saved); //$NON-NLS-1$
+		stream.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream stream) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = stream.readFields();
+		this.lastRefresh = fields.get("lastRefresh", 0L); //$NON-NLS-1$
+		this.url = (String) fields.get("url", URL); //$NON-NLS-1$
+		this.avatars = new AvatarCache();
+		this.host = parseHost(this.url);
+		this.loads = new HashMap<String, PendingLoad>();
+		this.hashes = new AvatarHashCache();
+		this.metrics = new AvatarStoreMetrics(this);
+		this.failures = new AvatarNegativeCache();
+		this.refresher = new AvatarRefreshScheduler(this);
+
+		// Budget is applied once the archive evicted avatars move to is set
+		Map<String, Avatar> saved = (Map<String, Avatar>) fields.get(
+				"avatars", null); //$NON-NLS-1$
+		if (saved != null)
+			for (Entry<String, Avatar> entry : saved.entrySet())
+				this.avatars.restore(entry.getKey(),
+						AvatarContentPool.intern(entry.getValue()));
+	}
+
+	private static String parseHost(String url) {
+		try {
+			return new URL(url).getHost();
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+
+	/**
+	 * Set scheduler used to run asynchronous avatar fetches
+	 * 
+	 * @param scheduler
+	 * @return this store
+	 */
+	public AvatarStore setFetchScheduler(AvatarFetchScheduler scheduler) {
+		Assert.isNotNull(scheduler, "Scheduler cannot be null"); //$NON-NLS-1$
+		synchronized (this) {
+			this.scheduler = scheduler;
+		}
+		return this;
+	}
+
+	/**
+	 * Get scheduler used to run asynchronous avatar fetches
+	 * 
+	 * @return non-null scheduler
+	 */
+	public synchronized AvatarFetchScheduler getFetchScheduler() {
+		if (this.scheduler == null)
+			this.scheduler = AvatarFetchScheduler.getDefault();
+		return this.scheduler;
+	}
+
+	/**
+	 * Set transport used to download avatars
+	 * 
+	 * @param transport
+	 * @return this store
+	 */
+	public AvatarStore setTransport(IAvatarTransport transport) {
+		Assert.isNotNull(transport, "Transport cannot be null"); //$NON-NLS-1$
+		synchronized (this) {
+			this.transport = transport;
+		}
+		return this;
+	}
+
+	/**
+	 * Get transport used to download avatars
+	 * 
+	 * @return non-null transport
+	 */
+	public synchronized IAvatarTransport getTransport() {
+		if (this.transport == null)
+			this.transport = new AvatarHttpTransport();
+		return this.transport;
+	}
+
+	/**
+	 * Get in-memory cache of this store
+	 * 
+	 * @return non-null cache
+	 */
+	public AvatarCache getCache() {
+		return this.avatars;
+	}
+
+	/**
+	 * Set persistent tier that avatars evicted from the in-memory cache are
+	 * written to and read back from. Avatars exceeding the cache budget are
+	 * moved to the archive immediately.
+	 * 
+	 * @param archive
+	 * @return this store
+	 */
+	public AvatarStore setArchive(IAvatarArchive archive) {
+		this.archive = archive;
+		archive(this.avatars.trim());
+		return this;
+	}
+
+	/**
+	 * Get persistent tier of this store
+	 * 
+	 * @return archive or null if none
+	 */
+	public IAvatarArchive getArchive() {
+		return this.archive;
+	}
+
+	/**
+	 * Set maximum number of image bytes held in memory
+	 * 
+	 * @param maxBytes
+	 * @return this store
+	 */
+	public AvatarStore setCacheSize(long maxBytes) {
+		this.avatars.setMaxBytes(maxBytes);
+		AvatarSlabArena current = this.arena;
+		if (current != null)
+			current.setMaxCapacity(getArenaCapacity());
+		archive(this.avatars.trim());
+		return this;
+	}
+
+	/**
+	 * Keep image data of cached avatars outside of the heap. Avatars already
+	 * cached are moved immediately, disabling only affects avatars cached
+	 * afterwards. The arena may grow to twice the cache size, leaving room
+	 * for evicted avatars that are still referenced, image data that does not
+	 * fit stays on the heap.
+	 * 
+	 * @param offHeap
+	 * @return this store
+	 */
+	public AvatarStore setOffHeap(boolean offHeap) {
+		if (!offHeap) {
+			this.arena = null;
+			return this;
+		}
+		if (this.arena != null)
+			return this;
+		AvatarSlabArena created = new AvatarSlabArena()
+				.setMaxCapacity(getArenaCapacity());
+		this.arena = created;
+		for (Entry<String, Avatar> entry : this.avatars.getAvatars()
+				.entrySet())
+			this.avatars.restore(entry.getKey(),
+					created.store(entry.getValue()));
+		return this;
+	}
+
+	private long getArenaCapacity() {
+		return 2 * Math.min(this.avatars.getMaxBytes(), Long.MAX_VALUE / 2);
+	}
+
+	/**
+	 * Get arena holding image data of cached avatars outside of the heap
+	 * 
+	 * @return arena or null if image data is held on the heap
+	 */
+	public AvatarSlabArena getArena() {
+		return this.arena;
+	}
+
+	/**
+	 * Cache avatar
+	 * 
+	 * @param hash
+	 * @param avatar
+	 * @return cached avatar, which holds its image data in the arena when
+	 *         off-heap storage is enabled
+	 */
+	private Avatar cache(String hash, Avatar avatar) {
+		AvatarSlabArena current = this.arena;
+		if (current != null)
+			avatar = current.store(avatar);
+		archive(this.avatars.put(hash, avatar));
+		return avatar;
+	}
+
+	/**
+	 * Cache newly loaded avatar and write it to the persistent tier
+	 * 
+	 * @param hash
+	 * @param avatar
+	 * @return cached avatar
+	 */
+	private Avatar update(String hash, Avatar avatar) {
+		avatar = cache(hash, avatar);
+		IAvatarArchive current = this.archive;
+		if (current != null)
+			try {
+				current.write(avatar);
+			} catch (IOException ignore) {
+				// Written again when evicted or saved
+			}
+		return avatar;
+	}
+
+	/**
+	 * Write evicted avatars to the archive in the background. Avatars cached
+	 * again in the meantime are skipped, they are written once evicted again.
+	 * 
+	 * @param evicted
+	 */
+	private void archive(final List<Avatar> evicted) {
+		final IAvatarArchive current = this.archive;
+		if (current == null || evicted.isEmpty())
+			return;
+		getFetchScheduler().schedule(null, null,
+				IAvatarRequest.PRIORITY_BACKGROUND, new Runnable() {
+
+					public void run() {
+						for (Avatar avatar : evicted)
+							if (!avatars.contains(getVariantKey(avatar)))
+								try {
+									current.write(avatar);
+								} catch (IOException ignore) {
+									// Avatar will be loaded again from the
+									// server when requested
+								}
+					}
+				});
+	}
+
+	/**
+	 * Get url avatars are loaded from
+	 * 
+	 * @return url
+	 */
+	public String getUrl() {
+		return this.url;
+	}
+
+	/**
+	 * Set last refresh time, used when restoring a persisted store
+	 * 
+	 * @param refreshTime
+	 */
+	void setRefreshTime(long refreshTime) {
+		this.lastRefresh = refreshTime;
 	}
 
 	/**
@@ -124,7 +562,12 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 * @see org.github.avatar.ui.IAvatarStore#containsAvatar(java.lang.String)
 	 */
 	public boolean containsAvatar(String hash) {
-		return hash != null ? this.avatars.containsKey(hash) : false;
+		if (hash == null)
+			return false;
+		if (this.avatars.contains(hash))
+			return true;
+		IAvatarArchive current = this.archive;
+		return current != null && current.contains(hash);
 	}
 
 	/**
@@ -150,26 +593,249 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 		if (monitor == null) {
 			monitor = new NullProgressMonitor();
 		}
-		String[] entries = null;
-		synchronized (this.avatars) {
-			entries = new String[this.avatars.size()];
-			entries = this.avatars.keySet().toArray(entries);
-		}
+		Set<String> keys = new LinkedHashSet<String>();
+		Collections.addAll(keys, this.avatars.getKeys());
+		IAvatarArchive current = this.archive;
+		if (current != null)
+			Collections.addAll(keys, current.getHashes());
+		String[] entries = keys.toArray(new String[keys.size()]);
 		monitor.beginTask("", entries.length); //$NON-NLS-1$
-		for (String entry : entries) {
-			monitor.setTaskName(MessageFormat.format(
-					Messages.AvatarStore_LoadingAvatar, entry));
-			try {
-				loadAvatarByHash(entry);
-			} catch (IOException ignore) {
+		final IProgressMonitor refreshMonitor = monitor;
+		final CountDownLatch remaining = new CountDownLatch(entries.length);
+		AvatarFetchScheduler fetchScheduler = getFetchScheduler();
+		for (final String entry : entries)
+			fetchScheduler.schedule(this.host, getFetchName(entry),
+					IAvatarRequest.PRIORITY_BACKGROUND, new Runnable() {
+
+						public void run() {
+							try {
+								if (!refreshMonitor.isCanceled())
+									loadAvatarByKey(entry);
+							} catch (IOException ignore) {
+							} finally {
+								remaining.countDown();
+							}
+						}
+					});
+
+		// Report progress from this thread since monitors are not thread-safe
+		long reported = 0;
+		try {
+			while (!remaining.await(REFRESH_POLL_INTERVAL,
+					TimeUnit.MILLISECONDS)) {
+				long completed = entries.length - remaining.getCount();
+				monitor.worked((int) (completed - reported));
+				reported = completed;
+				if (monitor.isCanceled())
+					break;
 			}
-			monitor.worked(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 		monitor.done();
 		this.lastRefresh = System.currentTimeMillis();
 		return this;
 	}
 
+	/**
+	 * Get hash for an entry of a prefetch list. Entries are hashes or e-mail
+	 * addresses, optionally in "Name &lt;address&gt;" form, blank entries and
+	 * entries starting with '#' are ignored.
+	 * 
+	 * @param entry
+	 * @return hash or null if the entry should be ignored
+	 */
+	private String getPrefetchHash(String entry) {
+		if (entry == null)
+			return null;
+		entry = entry.trim();
+		if (entry.length() == 0 || entry.charAt(0) == '#')
+			return null;
+		int start = entry.lastIndexOf('<');
+		int end = entry.lastIndexOf('>');
+		if (start != -1 && end > start)
+			entry = entry.substring(start + 1, end);
+		return isValidHash(entry) ? entry : getHash(entry);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#prefetch(java.util.Iterator,
+	 *      org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	public int prefetch(Iterator<String> entries, IProgressMonitor monitor) {
+		Assert.isNotNull(entries, "Entries cannot be null"); //$NON-NLS-1$
+		if (monitor == null)
+			monitor = new NullProgressMonitor();
+		monitor.beginTask("", IProgressMonitor.UNKNOWN); //$NON-NLS-1$
+		final Semaphore window = new Semaphore(PREFETCH_WINDOW);
+		final AtomicInteger loaded = new AtomicInteger();
+		IAvatarCallback callback = new AvatarCallbackAdapter() {
+
+			public void loaded(Avatar avatar) {
+				loaded.incrementAndGet();
+			}
+		};
+		Runnable completion = new Runnable() {
+
+			public void run() {
+				window.release();
+			}
+		};
+		try {
+			while (entries.hasNext() && !monitor.isCanceled()) {
+				String hash = getPrefetchHash(entries.next());
+				if (hash == null || containsAvatar(hash))
+					continue;
+				boolean acquired = false;
+				while (!acquired && !monitor.isCanceled())
+					acquired = window.tryAcquire(REFRESH_POLL_INTERVAL,
+							TimeUnit.MILLISECONDS);
+				// Only break without a permit, the in-flight wait below
+				// needs every permit back
+				if (!acquired)
+					break;
+				monitor.subTask(getFetchName(hash));
+				scheduleLoad(hash, IAvatarRequest.PRIORITY_BACKGROUND,
+						callback, completion);
+				monitor.worked(1);
+			}
+			// Wait for the prefetches still in flight
+			window.acquire(PREFETCH_WINDOW);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		monitor.done();
+		return loaded.get();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#prefetch(java.io.File,
+	 *      org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	public int prefetch(File file, IProgressMonitor monitor)
+			throws IOException {
+		Assert.isNotNull(file, "File cannot be null"); //$NON-NLS-1$
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8")); //$NON-NLS-1$
+		try {
+			LineIterator lines = new LineIterator(reader);
+			int loaded = prefetch(lines, monitor);
+			if (lines.error != null)
+				throw lines.error;
+			return loaded;
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException ignore) {
+				// Ignored
+			}
+		}
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#schedulePrefetch(java.io.File)
+	 */
+	public IAvatarStore schedulePrefetch(final File file) {
+		Assert.isNotNull(file, "File cannot be null"); //$NON-NLS-1$
+		Job prefetch = new Job(MessageFormat.format(
+				Messages.AvatarStore_PrefetchJobName, file.getName())) {
+
+			protected IStatus run(IProgressMonitor monitor) {
+				try {
+					prefetch(file, monitor);
+				} catch (IOException e) {
+					return AvatarPlugin.createErrorStatus(e.getMessage(), e);
+				}
+				return Status.OK_STATUS;
+			}
+		};
+		prefetch.setPriority(Job.DECORATE);
+		prefetch.schedule();
+		return this;
+	}
+
+	private String getFetchName(String hash) {
+		return MessageFormat.format(Messages.AvatarStore_LoadingAvatar, hash);
+	}
+
+	/**
+	 * Get standard size that an avatar displayed at the given size is
+	 * requested at. Sizes are rounded up to the nearest standard size so
+	 * avatars are only ever scaled down, sizes larger than every standard
+	 * size use the largest one.
+	 * 
+	 * @param size
+	 * @return standard size or 0 for the server's default size if size is
+	 *         not positive
+	 */
+	public static int getStandardSize(int size) {
+		if (size <= 0)
+			return 0;
+		for (int standard : SIZES)
+			if (standard >= size)
+				return standard;
+		return SIZES[SIZES.length - 1];
+	}
+
+	/**
+	 * Get key the variant of an avatar at the given size is stored under
+	 * 
+	 * @param hash
+	 * @param size
+	 *            displayed size, 0 for the server's default size
+	 * @return key
+	 */
+	public static String getVariantKey(String hash, int size) {
+		int standard = getStandardSize(size);
+		return standard > 0 ? hash + SIZE_SEPARATOR + standard : hash;
+	}
+
+	/**
+	 * Get key an avatar variant is stored under
+	 * 
+	 * @param avatar
+	 * @return key
+	 */
+	static String getVariantKey(Avatar avatar) {
+		return getVariantKey(avatar.getId(), avatar.getSize());
+	}
+
+	/**
+	 * Get hash of the avatar variant stored under key
+	 * 
+	 * @param key
+	 * @return hash
+	 */
+	static String getVariantHash(String key) {
+		int separator = key.indexOf(SIZE_SEPARATOR);
+		return separator != -1 ? key.substring(0, separator) : key;
+	}
+
+	/**
+	 * Get size of the avatar variant stored under key
+	 * 
+	 * @param key
+	 * @return standard size or 0 for the server's default size
+	 */
+	static int getVariantSize(String key) {
+		int separator = key.indexOf(SIZE_SEPARATOR);
+		if (separator == -1)
+			return 0;
+		try {
+			return Integer.parseInt(key.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private String getAvatarUrl(String key) {
+		int separator = key.indexOf(SIZE_SEPARATOR);
+		if (separator == -1)
+			return this.url + key;
+		return this.url + key.substring(0, separator) + '?' + SIZE_PARAMETER
+				+ '=' + key.substring(separator + 1);
+	}
+
 	/**
 	 * Is the specified string a valid avatar hash?
 	 * 
@@ -177,8 +843,7 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 * @return true if valid hash, false otherwise
 	 */
 	public boolean isValidHash(String hash) {
-		return hash != null && hash.length() == HASH_LENGTH
-				&& HASH_PATTERN.matcher(hash).matches();
+		return AvatarHasher.isValidHash(hash);
 	}
 
 	/**
@@ -187,27 +852,351 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 */
 	public IAvatarStore loadAvatarByHash(final String hash,
 			final IAvatarCallback callback) {
-		String title = MessageFormat.format(Messages.AvatarStore_LoadingAvatar,
-				hash);
-		Job job = new Job(title) {
+		return loadAvatarByHash(hash, 0, callback);
+	}
 
-			protected IStatus run(IProgressMonitor monitor) {
-				try {
-					Avatar avatar = loadAvatarByHash(hash);
-					if (avatar != null && callback != null)
-						callback.loaded(avatar);
-				} catch (IOException e) {
-					if (callback != null)
-						callback.error(e);
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#loadAvatarByHash(java.lang.String,
+	 *      int, org.github.avatar.ui.IAvatarCallback)
+	 */
+	public IAvatarStore loadAvatarByHash(String hash, int size,
+			IAvatarCallback callback) {
+		requestAvatarByHash(hash, size, IAvatarRequest.PRIORITY_NORMAL,
+				callback);
+		return this;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#requestAvatarByHash(java.lang.String,
+	 *      int, int, org.github.avatar.ui.IAvatarCallback)
+	 */
+	public IAvatarRequest requestAvatarByHash(String hash, int size,
+			int priority, IAvatarCallback callback) {
+		return requestAvatarByHash(hash, size, priority, callback, null);
+	}
+
+	/**
+	 * Request avatar by hash at the given display size asynchronously and run
+	 * completion once the request is done, whatever its outcome
+	 * 
+	 * @see #requestAvatarByHash(String, int, int, IAvatarCallback)
+	 * @param hash
+	 * @param size
+	 * @param priority
+	 * @param callback
+	 *            may be null
+	 * @param completion
+	 *            run once the load succeeds, fails, finds no avatar or the
+	 *            request is cancelled, may be null. Not run if the hash is
+	 *            invalid.
+	 * @return non-null request
+	 */
+	public IAvatarRequest requestAvatarByHash(String hash, int size,
+			int priority, IAvatarCallback callback, Runnable completion) {
+		if (isValidHash(hash))
+			return scheduleLoad(getVariantKey(hash, size), priority, callback,
+					completion);
+		LoadRequest request = new LoadRequest(hash, priority, callback, null);
+		request.done = true;
+		return request;
+	}
+
+	/**
+	 * Schedule load of avatar variant or join the load already in flight
+	 * 
+	 * @param key
+	 * @param priority
+	 * @param callback
+	 *            notified if the load succeeds or fails, may be null
+	 * @param completion
+	 *            run once the load finishes or the request is cancelled, may
+	 *            be null
+	 * @return non-null request
+	 */
+	private IAvatarRequest scheduleLoad(final String key, int priority,
+			IAvatarCallback callback, Runnable completion) {
+		LoadRequest request = new LoadRequest(key, priority, callback,
+				completion);
+		if (this.failures.isSuppressed(key)) {
+			request.done = true;
+			if (completion != null)
+				completion.run();
+			return request;
+		}
+
+		final PendingLoad load = new PendingLoad();
+		load.fetch = new Runnable() {
+
+			public void run() {
+				runLoad(key, load);
+			}
+		};
+		synchronized (this.loads) {
+			PendingLoad pending = this.loads.get(key);
+			if (pending != null) {
+				// Share the fetch already in flight for this variant
+				request.load = pending;
+				pending.requests.add(request);
+				if (pending.fetch != null)
+					getFetchScheduler().setPriority(pending.fetch,
+							pending.getPriority());
+				return request;
+			}
+			request.load = load;
+			load.requests.add(request);
+			this.loads.put(key, load);
+		}
+		getFetchScheduler().schedule(this.host, getFetchName(key), priority,
+				load.fetch);
+		return request;
+	}
+
+	/**
+	 * Cancel request and its load if nothing else is waiting on it and its
+	 * fetch has not started yet
+	 * 
+	 * @param request
+	 * @return true if cancelled, false otherwise
+	 */
+	private boolean cancelRequest(LoadRequest request) {
+		synchronized (this.loads) {
+			PendingLoad load = request.load;
+			// Requests of finishing loads are notified as usual
+			if (request.done || load == null
+					|| this.loads.get(request.key) != load)
+				return false;
+			request.cancelled = true;
+			request.done = true;
+			load.requests.remove(request);
+			if (load.requests.isEmpty() && load.fetch != null
+					&& getFetchScheduler().cancel(load.fetch)) {
+				this.loads.remove(request.key);
+				load.done.countDown();
+			} else if (load.fetch != null)
+				getFetchScheduler().setPriority(load.fetch,
+						load.getPriority());
+		}
+		if (request.completion != null)
+			request.completion.run();
+		return true;
+	}
+
+	/**
+	 * Apply changed priority of request to the fetch of its load
+	 * 
+	 * @param request
+	 */
+	private void prioritize(LoadRequest request) {
+		synchronized (this.loads) {
+			PendingLoad load = request.load;
+			if (load != null && load.fetch != null
+					&& this.loads.get(request.key) == load)
+				getFetchScheduler().setPriority(load.fetch,
+						load.getPriority());
+		}
+	}
+
+	/**
+	 * Is an avatar load currently in flight for the specified hash?
+	 * 
+	 * @param hash
+	 * @return true if loading, false otherwise
+	 */
+	public boolean isLoading(String hash) {
+		if (hash == null)
+			return false;
+		synchronized (this.loads) {
+			return this.loads.containsKey(hash);
+		}
+	}
+
+	/**
+	 * Get number of avatar loads currently in flight
+	 * 
+	 * @return load count
+	 */
+	public int getLoadCount() {
+		synchronized (this.loads) {
+			return this.loads.size();
+		}
+	}
+
+	/**
+	 * Get cache of avatars that recently could not be loaded. Loads of those
+	 * avatars are skipped until their retry time passes.
+	 * 
+	 * @return non-null negative cache
+	 */
+	public AvatarNegativeCache getNegativeCache() {
+		return this.failures;
+	}
+
+	/**
+	 * Get scheduler that refreshes stale avatars of this store in the
+	 * background once started
+	 * 
+	 * @return non-null refresh scheduler
+	 */
+	public AvatarRefreshScheduler getRefreshScheduler() {
+		return this.refresher;
+	}
+
+	/**
+	 * Revalidate avatar variant asynchronously. The current copy keeps being
+	 * served until the revalidated copy replaces it.
+	 * 
+	 * @param key
+	 */
+	void revalidate(String key) {
+		scheduleLoad(key, IAvatarRequest.PRIORITY_BACKGROUND, null, null);
+	}
+
+	/**
+	 * Get runtime metrics of this store
+	 * 
+	 * @return non-null metrics
+	 */
+	public AvatarStoreMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Read avatar variant evicted to the archive back into the cache in the
+	 * background. Requests for the variant made meanwhile share this load.
+	 * 
+	 * @param key
+	 */
+	private void recover(final String key) {
+		final PendingLoad load = new PendingLoad();
+		load.archived = true;
+		load.fetch = new Runnable() {
+
+			public void run() {
+				runLoad(key, load);
+			}
+		};
+		synchronized (this.loads) {
+			if (this.loads.containsKey(key))
+				return;
+			this.loads.put(key, load);
+		}
+		getFetchScheduler().schedule(null, getFetchName(key),
+				IAvatarRequest.PRIORITY_NORMAL, load.fetch);
+	}
+
+	private void runLoad(String key, PendingLoad load) {
+		try {
+			if (load.archived) {
+				load.avatar = getAvatarByKey(key);
+				// Fetch avatars the archive no longer has or cannot read
+				if (load.avatar == null)
+					load.avatar = fetchAvatar(key);
+			} else
+				load.avatar = fetchAvatar(key);
+		} catch (IOException e) {
+			load.error = e;
+		} finally {
+			if (load.avatar != null)
+				this.failures.succeeded(key);
+			else
+				this.failures.failed(key);
+			synchronized (this.loads) {
+				this.loads.remove(key);
+			}
+			load.done.countDown();
+		}
+
+		// Requests can no longer be added or cancelled once the load has been
+		// removed
+		for (LoadRequest request : load.requests) {
+			request.done = true;
+			if (request.callback == null)
+				continue;
+			if (load.error != null)
+				request.callback.error(load.error);
+			else if (load.avatar != null)
+				request.callback.loaded(load.avatar);
+		}
+		for (LoadRequest request : load.requests)
+			if (request.completion != null)
+				request.completion.run();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#loadAvatarsByHash(java.util.Collection,
+	 *      org.github.avatar.ui.IAvatarBatchCallback)
+	 */
+	public IAvatarStore loadAvatarsByHash(Collection<String> hashes,
+			final IAvatarBatchCallback callback) {
+		Assert.isNotNull(hashes, "Hashes cannot be null"); //$NON-NLS-1$
+		Set<String> unique = new LinkedHashSet<String>();
+		for (String hash : hashes)
+			if (isValidHash(hash))
+				unique.add(hash);
+
+		final List<Avatar> avatars = new ArrayList<Avatar>(unique.size());
+		List<String> misses = new ArrayList<String>();
+		for (String hash : unique) {
+			Avatar cached = getAvatarByHash(hash);
+			if (cached != null)
+				avatars.add(cached);
+			else
+				misses.add(hash);
+		}
+		if (misses.isEmpty()) {
+			if (callback != null)
+				callback.completed(avatars.toArray(new Avatar[avatars.size()]));
+			return this;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(misses.size());
+		IAvatarCallback itemCallback = new IAvatarCallback() {
+
+			public void loaded(Avatar avatar) {
+				synchronized (avatars) {
+					avatars.add(avatar);
 				}
-				return Status.OK_STATUS;
+				if (callback != null)
+					callback.loaded(avatar);
+			}
+
+			public void error(Exception exception) {
+				if (callback != null)
+					callback.error(exception);
 			}
 		};
-		job.setRule(this);
-		job.schedule();
+		Runnable completion = new Runnable() {
+
+			public void run() {
+				if (remaining.decrementAndGet() == 0 && callback != null) {
+					Avatar[] loaded;
+					synchronized (avatars) {
+						loaded = avatars.toArray(new Avatar[avatars.size()]);
+					}
+					callback.completed(loaded);
+				}
+			}
+		};
+		// All misses are queued at once and fetched in parallel
+		for (String hash : misses)
+			scheduleLoad(hash, IAvatarRequest.PRIORITY_NORMAL, itemCallback,
+					completion);
 		return this;
 	}
 
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#loadAvatarsByEmail(java.util.Collection,
+	 *      org.github.avatar.ui.IAvatarBatchCallback)
+	 */
+	public IAvatarStore loadAvatarsByEmail(Collection<String> emails,
+			IAvatarBatchCallback callback) {
+		Assert.isNotNull(emails, "E-mails cannot be null"); //$NON-NLS-1$
+		List<String> hashes = new ArrayList<String>(emails.size());
+		for (String email : emails)
+			hashes.add(getHash(email));
+		return loadAvatarsByHash(hashes, callback);
+	}
+
 	/**
 	 * @see org.github.avatar.ui.IAvatarStore#loadAvatarByEmail(java.lang.String,
 	 *      org.github.avatar.ui.IAvatarCallback)
@@ -221,40 +1210,91 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 * @see org.github.avatar.ui.IAvatarStore#loadAvatarByHash(java.lang.String)
 	 */
 	public Avatar loadAvatarByHash(String hash) throws IOException {
+		return loadAvatarByHash(hash, 0);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#loadAvatarByHash(java.lang.String,
+	 *      int)
+	 */
+	public Avatar loadAvatarByHash(String hash, int size) throws IOException {
 		if (!isValidHash(hash))
 			return null;
+		return loadAvatarByKey(getVariantKey(hash, size));
+	}
 
-		Avatar avatar = null;
-		HttpURLConnection connection = (HttpURLConnection) new URL(this.url
-				+ hash).openConnection();
-		connection.setConnectTimeout(TIMEOUT);
-		connection.setUseCaches(false);
-		connection.connect();
-
-		if (connection.getResponseCode() != 200)
+	private Avatar loadAvatarByKey(String key) throws IOException {
+		if (this.failures.isSuppressed(key))
 			return null;
 
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		InputStream input = connection.getInputStream();
-		try {
-			byte[] buffer = new byte[BUFFER_SIZE];
-			int read = -1;
-			while ((read = input.read(buffer)) != -1)
-				output.write(buffer, 0, read);
-		} finally {
-			try {
-				input.close();
-			} catch (IOException ignore) {
-			}
+		PendingLoad load;
+		boolean owner = false;
+		synchronized (this.loads) {
+			load = this.loads.get(key);
+			if (load == null) {
+				load = new PendingLoad();
+				this.loads.put(key, load);
+				owner = true;
+			} else if (load.fetch != null
+					&& getFetchScheduler().cancel(load.fetch))
+				// Run a fetch that is still queued here instead of waiting for
+				// a worker to get to it
+				owner = true;
+		}
+		if (owner)
+			runLoad(key, load);
+		else
 			try {
-				output.close();
-			} catch (IOException ignore) {
+				load.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
 			}
+		if (load.error != null)
+			throw load.error;
+		return load.avatar;
+	}
+
+	private Avatar fetchAvatar(String key) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Avatar avatar = requestAvatar(key);
+			failed = false;
+			return avatar;
+		} finally {
+			this.metrics.recordFetch(System.nanoTime() - start, failed);
 		}
-		avatar = new Avatar(hash, System.currentTimeMillis(),
-				output.toByteArray());
-		this.avatars.put(hash, avatar);
-		return avatar;
+	}
+
+	private Avatar requestAvatar(String key) throws IOException {
+		// Revalidate cached avatar instead of downloading it again
+		Avatar cached = getAvatarByKey(key);
+		AvatarResponse response = getTransport().get(getAvatarUrl(key),
+				cached != null ? cached.getEtag() : null,
+				cached != null ? cached.getLastModified() : 0L);
+
+		int code = response.getStatus();
+		this.metrics.recordResponse(code);
+		Avatar avatar;
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+			String etag = response.getEtag();
+			long lastModified = response.getLastModified();
+			avatar = cached.revalidate(System.currentTimeMillis(),
+					etag != null ? etag : cached.getEtag(),
+					lastModified > 0 ? lastModified : cached.getLastModified());
+			return update(key, avatar);
+		}
+		byte[] body = response.getBody();
+		if (code != HttpURLConnection.HTTP_OK || body == null)
+			return null;
+
+		this.metrics.recordDownload(body.length);
+		// Identical images downloaded for other hashes share their data
+		avatar = AvatarContentPool.intern(new Avatar(getVariantHash(key),
+				getVariantSize(key), System.currentTimeMillis(), body, response.getEtag(),
+				response.getLastModified()));
+		return update(key, avatar);
 	}
 
 	/**
@@ -268,25 +1308,61 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 * @see org.github.avatar.ui.IAvatarStore#getAvatarByHash(java.lang.String)
 	 */
 	public Avatar getAvatarByHash(String hash) {
-		return hash != null ? this.avatars.get(hash) : null;
+		return hash != null ? getAccessedAvatar(hash) : null;
 	}
 
-	private String digest(String value) {
-		String hashed = null;
-		try {
-			byte[] digested = MessageDigest.getInstance(HASH_ALGORITHM).digest(
-					value.getBytes(CHARSET));
-			hashed = new BigInteger(1, digested).toString(16);
-			int padding = HASH_LENGTH - hashed.length();
-			if (padding > 0) {
-				char[] zeros = new char[padding];
-				Arrays.fill(zeros, '0');
-				hashed = new String(zeros) + hashed;
-			}
-		} catch (NoSuchAlgorithmException e) {
-			hashed = null;
+	/**
+	 * @see org.github.avatar.ui.IAvatarStore#getAvatarByHash(java.lang.String,
+	 *      int)
+	 */
+	public Avatar getAvatarByHash(String hash, int size) {
+		return hash != null ? getAccessedAvatar(getVariantKey(hash, size))
+				: null;
+	}
+
+	/**
+	 * Get avatar variant held in memory. Variants evicted to the archive are
+	 * read back in the background instead of on the calling thread, which is
+	 * usually the UI-thread.
+	 * 
+	 * @param key
+	 * @return avatar or null if not in memory
+	 */
+	private Avatar getAccessedAvatar(String key) {
+		Avatar avatar = this.avatars.get(key);
+		if (avatar != null)
+			this.refresher.accessed(key);
+		else {
+			IAvatarArchive current = this.archive;
+			if (current != null && current.contains(key))
+				recover(key);
 		}
-		return hashed;
+		return avatar;
+	}
+
+	/**
+	 * Get avatar variant from memory or read it from the archive on the
+	 * calling thread
+	 * 
+	 * @param key
+	 * @return avatar or null if neither holds it
+	 */
+	private Avatar getAvatarByKey(String key) {
+		Avatar avatar = this.avatars.get(key);
+		if (avatar != null)
+			return avatar;
+
+		// Recover evicted avatar from the persistent tier
+		IAvatarArchive current = this.archive;
+		if (current != null && current.contains(key))
+			try {
+				avatar = current.read(key);
+				if (avatar != null)
+					avatar = cache(key, avatar);
+			} catch (IOException ignore) {
+				avatar = null;
+			}
+		return avatar;
 	}
 
 	/**
@@ -296,37 +1372,62 @@ public class AvatarStore implements Serializable, ISchedulingRule, IAvatarStore
 	 * @return hash
 	 */
 	public String getHash(String email) {
-		String hash = null;
-		if (email != null) {
-			email = email.trim().toLowerCase(Locale.US);
-			if (email.length() > 0)
-				hash = digest(email);
+		if (email == null)
+			return null;
+		String hash = this.hashes.getEmailHash(email);
+		if (hash == null) {
+			hash = AvatarHasher.hashEmail(email);
+			if (hash != null)
+				this.hashes.putEmailHash(email, hash);
 		}
 		return hash;
 	}
 
+	/**
+	 * Clear memoized hashes of e-mail addresses and elements. This should be
+	 * called when elements previously passed to
+	 * {@link #getAdaptedHash(Object)} may now resolve to a different hash.
+	 * 
+	 * @return this store
+	 */
+	public AvatarStore clearHashCache() {
+		this.hashes.clear();
+		return this;
+	}
+
 	/**
 	 * Get hash for object by attempting to adapt it to a
 	 * {@link IAvatarHashProvider} and fall back on {@link Object#toString()}
 	 * value if adaptation fails.
+	 * <p>
+	 * The outcome of adapting an element is memoized by element identity and
+	 * hashes of e-mail addresses are memoized by string, see
+	 * {@link #clearHashCache()}.
 	 * 
 	 * @param element
 	 * @return hash
 	 */
 	public String getAdaptedHash(Object element) {
-		IAvatarHashProvider provider = null;
 		if (element instanceof IAvatarHashProvider)
-			provider = (IAvatarHashProvider) element;
-		else if (element instanceof IAdaptable)
-			provider = (IAvatarHashProvider) ((IAdaptable) element)
-					.getAdapter(IAvatarHashProvider.class);
-		if (provider != null)
-			return provider.getAvatarHash();
-		else {
-			String potentialHash = element.toString();
-			return isValidHash(potentialHash) ? potentialHash
-					: getHash(potentialHash);
+			return ((IAvatarHashProvider) element).getAvatarHash();
+		if (element instanceof IAdaptable) {
+			String hash = this.hashes.getElementHash(element);
+			if (hash == null) {
+				IAvatarHashProvider provider = (IAvatarHashProvider) ((IAdaptable) element)
+						.getAdapter(IAvatarHashProvider.class);
+				if (provider != null) {
+					hash = provider.getAvatarHash();
+					if (hash != null)
+						this.hashes.putElementHash(element, hash);
+					return hash;
+				}
+				this.hashes.putElementHash(element, AvatarHashCache.NONE);
+			} else if (hash != AvatarHashCache.NONE)
+				return hash;
 		}
+		String potentialHash = element.toString();
+		return isValidHash(potentialHash) ? potentialHash
+				: getHash(potentialHash);
 	}
 
 	/**
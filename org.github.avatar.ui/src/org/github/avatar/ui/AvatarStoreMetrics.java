@@ -0,0 +1,309 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * Metrics of an avatar store. Counters are updated by the store as it runs
+ * and everything else is read from the store when requested.
+ * <p>
+ * Decode and scale times are shared by all stores since avatar images are
+ * not tied to the store they were loaded from.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public class AvatarStoreMetrics implements IAvatarStoreMetrics {
+
+	/**
+	 * OBJECT_NAME
+	 */
+	public static final String OBJECT_NAME = "org.github.avatar.ui:type=AvatarStore"; //$NON-NLS-1$
+
+	private static final int MAX_STATUS = 600;
+
+	private static final AvatarHistogram decodeTimes = new AvatarHistogram();
+
+	private static final AvatarHistogram scaleTimes = new AvatarHistogram();
+
+	/**
+	 * Record time taken to decode an avatar image
+	 *
+	 * @param nanos
+	 */
+	static void recordDecode(long nanos) {
+		decodeTimes.record(nanos);
+	}
+
+	/**
+	 * Record time taken to scale an avatar image
+	 *
+	 * @param nanos
+	 */
+	static void recordScale(long nanos) {
+		scaleTimes.record(nanos);
+	}
+
+	private final AvatarStore store;
+	private final AvatarHistogram fetchTimes = new AvatarHistogram();
+	private final AtomicLong fetchErrors = new AtomicLong();
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+	private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+
+	/**
+	 * Create metrics for store
+	 *
+	 * @param store
+	 */
+	public AvatarStoreMetrics(AvatarStore store) {
+		Assert.isNotNull(store, "Store cannot be null"); //$NON-NLS-1$
+		this.store = store;
+	}
+
+	/**
+	 * Record completed fetch
+	 *
+	 * @param nanos
+	 * @param failed
+	 */
+	void recordFetch(long nanos, boolean failed) {
+		this.fetchTimes.record(nanos);
+		if (failed)
+			this.fetchErrors.incrementAndGet();
+	}
+
+	/**
+	 * Record HTTP response status
+	 *
+	 * @param status
+	 */
+	void recordResponse(int status) {
+		if (status >= 0 && status < MAX_STATUS)
+			this.statuses.incrementAndGet(status);
+	}
+
+	/**
+	 * Record downloaded image bytes
+	 *
+	 * @param bytes
+	 */
+	void recordDownload(long bytes) {
+		this.bytesDownloaded.addAndGet(bytes);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getCacheHitCount()
+	 */
+	public long getCacheHitCount() {
+		return this.store.getCache().getHitCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getCacheMissCount()
+	 */
+	public long getCacheMissCount() {
+		return this.store.getCache().getMissCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getCacheEvictionCount()
+	 */
+	public long getCacheEvictionCount() {
+		return this.store.getCache().getEvictionCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getCacheSize()
+	 */
+	public int getCacheSize() {
+		return this.store.getCache().size();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getCacheByteCount()
+	 */
+	public long getCacheByteCount() {
+		return this.store.getCache().getByteCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getOffHeapByteCount()
+	 */
+	public long getOffHeapByteCount() {
+		AvatarSlabArena arena = this.store.getArena();
+		return arena != null ? arena.getByteCount() : 0L;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getOffHeapCapacity()
+	 */
+	public long getOffHeapCapacity() {
+		AvatarSlabArena arena = this.store.getArena();
+		return arena != null ? arena.getCapacity() : 0L;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getInFlightLoadCount()
+	 */
+	public int getInFlightLoadCount() {
+		return this.store.getLoadCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getQueuedFetchCount()
+	 */
+	public int getQueuedFetchCount() {
+		return this.store.getFetchScheduler().getQueuedCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getNegativeCacheHitCount()
+	 */
+	public long getNegativeCacheHitCount() {
+		return this.store.getNegativeCache().getHitCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getNegativeCacheSize()
+	 */
+	public int getNegativeCacheSize() {
+		return this.store.getNegativeCache().size();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getFetchCount()
+	 */
+	public long getFetchCount() {
+		return this.fetchTimes.getCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getFetchErrorCount()
+	 */
+	public long getFetchErrorCount() {
+		return this.fetchErrors.get();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getFetchTimeMean()
+	 */
+	public double getFetchTimeMean() {
+		return this.fetchTimes.getMean();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getFetchTime95thPercentile()
+	 */
+	public double getFetchTime95thPercentile() {
+		return this.fetchTimes.getPercentile(0.95D);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getFetchTimeMax()
+	 */
+	public double getFetchTimeMax() {
+		return this.fetchTimes.getMax();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getBytesDownloaded()
+	 */
+	public long getBytesDownloaded() {
+		return this.bytesDownloaded.get();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getHttpStatusCounts()
+	 */
+	public Map<Integer, Long> getHttpStatusCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (int i = 0; i < MAX_STATUS; i++) {
+			long count = this.statuses.get(i);
+			if (count > 0)
+				counts.put(Integer.valueOf(i), Long.valueOf(count));
+		}
+		return counts;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getDecodeCount()
+	 */
+	public long getDecodeCount() {
+		return decodeTimes.getCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getDecodeTimeMean()
+	 */
+	public double getDecodeTimeMean() {
+		return decodeTimes.getMean();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getDecodeTime95thPercentile()
+	 */
+	public double getDecodeTime95thPercentile() {
+		return decodeTimes.getPercentile(0.95D);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getScaleCount()
+	 */
+	public long getScaleCount() {
+		return scaleTimes.getCount();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getScaleTimeMean()
+	 */
+	public double getScaleTimeMean() {
+		return scaleTimes.getMean();
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getScaleTime95thPercentile()
+	 */
+	public double getScaleTime95thPercentile() {
+		return scaleTimes.getPercentile(0.95D);
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getPersistedCount()
+	 */
+	public int getPersistedCount() {
+		IAvatarArchive archive = this.store.getArchive();
+		return archive != null ? archive.size() : 0;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#getPersistedByteCount()
+	 */
+	public long getPersistedByteCount() {
+		IAvatarArchive archive = this.store.getArchive();
+		return archive != null ? archive.getByteCount() : 0L;
+	}
+
+	/**
+	 * @see org.github.avatar.ui.IAvatarStoreMetrics#reset()
+	 */
+	public void reset() {
+		this.fetchTimes.reset();
+		this.fetchErrors.set(0L);
+		this.bytesDownloaded.set(0L);
+		for (int i = 0; i < MAX_STATUS; i++)
+			this.statuses.set(i, 0L);
+		decodeTimes.reset();
+		scaleTimes.reset();
+	}
+}
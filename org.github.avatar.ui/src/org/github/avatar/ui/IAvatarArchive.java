@@ -0,0 +1,83 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.io.IOException;
+
+/**
+ * Persistent tier of an avatar store that holds avatars no longer kept in
+ * memory. Avatars are archived under the key of their variant, see
+ * {@link AvatarStore#getVariantKey(String, int)}. The store only reads and
+ * writes its archive on background threads, {@link #contains(String)} may be
+ * called on any thread and must not block on I/O.
+ * <p>
+ * {@link AvatarFileStore} is the archive used by the plug-in.
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public interface IAvatarArchive {
+
+	/**
+	 * Does this archive contain an avatar for the key?
+	 * 
+	 * @param hash
+	 *            variant key
+	 * @return true if contained, false otherwise
+	 */
+	boolean contains(String hash);
+
+	/**
+	 * Get hashes of all archived avatars
+	 * 
+	 * @return non-null array of hashes
+	 */
+	String[] getHashes();
+
+	/**
+	 * Get update time of archived avatar without reading its image data
+	 * 
+	 * @param hash
+	 * @return update time or -1 if not archived
+	 */
+	long getUpdateTime(String hash);
+
+	/**
+	 * Get number of archived avatars
+	 * 
+	 * @return size
+	 */
+	int size();
+
+	/**
+	 * Get number of bytes used by this archive
+	 * 
+	 * @return byte count
+	 */
+	long getByteCount();
+
+	/**
+	 * Read archived avatar
+	 * 
+	 * @param hash
+	 * @return avatar or null if not archived
+	 * @throws IOException
+	 */
+	Avatar read(String hash) throws IOException;
+
+	/**
+	 * Write avatar to archive, replacing any previously archived avatar of the
+	 * same variant. Implementations may write asynchronously but must return
+	 * the written avatar from {@link #read(String)} immediately.
+	 * 
+	 * @param avatar
+	 * @throws IOException
+	 */
+	void write(Avatar avatar) throws IOException;
+
+}
@@ -0,0 +1,26 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *  
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+/**
+ * Callback interface for when loading a batch of avatars completes.
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public interface IAvatarBatchCallback extends IAvatarCallback {
+
+	/**
+	 * All avatars in the batch have been loaded or have failed to load
+	 * 
+	 * @param avatars
+	 *            every avatar of the batch that is available
+	 */
+	void completed(Avatar[] avatars);
+
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+/**
+ * Handle to an asynchronous avatar load request
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public interface IAvatarRequest {
+
+	/**
+	 * Priority of work nobody is waiting on, such as refreshes and prefetches
+	 */
+	int PRIORITY_BACKGROUND = 0;
+
+	/**
+	 * Default priority
+	 */
+	int PRIORITY_NORMAL = 1;
+
+	/**
+	 * Priority of avatars currently being displayed. The most recently
+	 * requested interactive avatars are fetched first.
+	 */
+	int PRIORITY_INTERACTIVE = 2;
+
+	/**
+	 * Cancel this request. The callback of a cancelled request is not
+	 * notified and the fetch itself is cancelled if it has not started and no
+	 * other request is waiting on it.
+	 * 
+	 * @return true if cancelled, false if already done or cancelled
+	 */
+	boolean cancel();
+
+	/**
+	 * Set priority of this request. Has no effect once the fetch has started.
+	 * 
+	 * @param priority
+	 * @return this request
+	 */
+	IAvatarRequest setPriority(int priority);
+
+	/**
+	 * Get priority of this request
+	 * 
+	 * @return priority
+	 */
+	int getPriority();
+
+	/**
+	 * Is this request done? Requests are done once their load finishes or
+	 * they are cancelled.
+	 * 
+	 * @return true if done, false otherwise
+	 */
+	boolean isDone();
+
+	/**
+	 * Was this request cancelled?
+	 * 
+	 * @return true if cancelled, false otherwise
+	 */
+	boolean isCancelled();
+
+}
@@ -8,7 +8,10 @@
  *******************************************************************************/
 package org.github.avatar.ui;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 
@@ -42,6 +45,41 @@ public interface IAvatarStore {
 	 */
 	IAvatarStore scheduleRefresh();
 
+	/**
+	 * Prefetch avatars for a list of hashes or e-mail addresses so they are
+	 * available from the store before they are first displayed. Entries
+	 * already in the store are skipped and only a few prefetches are in flight
+	 * at once. Blocks until every prefetch has finished or the monitor is
+	 * canceled.
+	 * 
+	 * @param entries
+	 *            hashes, e-mail addresses or "Name &lt;address&gt;" entries
+	 * @param monitor
+	 * @return number of avatars fetched
+	 */
+	int prefetch(Iterator<String> entries, IProgressMonitor monitor);
+
+	/**
+	 * Prefetch avatars listed one per line in a UTF-8 file. Blank lines and
+	 * lines starting with '#' are ignored.
+	 * 
+	 * @see #prefetch(Iterator, IProgressMonitor)
+	 * @param file
+	 * @param monitor
+	 * @return number of avatars fetched
+	 * @throws IOException
+	 */
+	int prefetch(File file, IProgressMonitor monitor) throws IOException;
+
+	/**
+	 * Schedule low priority job that prefetches avatars listed in a file
+	 * 
+	 * @see #prefetch(File, IProgressMonitor)
+	 * @param file
+	 * @return this store
+	 */
+	IAvatarStore schedulePrefetch(File file);
+
 	/**
 	 * Get last refresh time of store
 	 * 
@@ -50,7 +88,8 @@ public interface IAvatarStore {
 	long getRefreshTime();
 
 	/**
-	 * Load avatar by hash asynchronously
+	 * Load avatar by hash asynchronously. Concurrent loads of the same hash
+	 * share a single fetch and every callback is notified when it completes.
 	 * 
 	 * @param hash
 	 * @param callback
@@ -58,6 +97,36 @@ public interface IAvatarStore {
 	 */
 	IAvatarStore loadAvatarByHash(String hash, IAvatarCallback callback);
 
+	/**
+	 * Load avatar by hash at the given display size asynchronously. The avatar
+	 * is requested from the server at the nearest standard size that is at
+	 * least as large and is stored separately from other sizes.
+	 * 
+	 * @param hash
+	 * @param size
+	 *            displayed size, 0 for the server's default size
+	 * @param callback
+	 * @return this store
+	 */
+	IAvatarStore loadAvatarByHash(String hash, int size,
+			IAvatarCallback callback);
+
+	/**
+	 * Request avatar by hash at the given display size asynchronously. The
+	 * returned request can be re-prioritized or cancelled while it is queued.
+	 *
+	 * @param hash
+	 * @param size
+	 *            displayed size, 0 for the server's default size
+	 * @param priority
+	 *            one of the {@link IAvatarRequest} priorities
+	 * @param callback
+	 * @return non-null request, already done if the hash is invalid or the
+	 *         avatar recently failed to load
+	 */
+	IAvatarRequest requestAvatarByHash(String hash, int size, int priority,
+			IAvatarCallback callback);
+
 	/**
 	 * Load latest avatar by specified hash
 	 * 
@@ -67,6 +136,46 @@ public interface IAvatarStore {
 	 */
 	Avatar loadAvatarByHash(String hash) throws IOException;
 
+	/**
+	 * Load latest avatar by specified hash at the given display size
+	 * 
+	 * @see #loadAvatarByHash(String, int, IAvatarCallback)
+	 * @param hash
+	 * @param size
+	 *            displayed size, 0 for the server's default size
+	 * @return avatar or null if load fails
+	 * @throws IOException
+	 */
+	Avatar loadAvatarByHash(String hash, int size) throws IOException;
+
+	/**
+	 * Load avatars for all specified hashes asynchronously. Duplicate and
+	 * invalid hashes are ignored, avatars already in the store are not loaded
+	 * again and the remaining hashes are fetched in parallel.
+	 * <p>
+	 * The callback's {@link IAvatarCallback#loaded(Avatar)} and
+	 * {@link IAvatarCallback#error(Exception)} methods are called for each
+	 * fetched hash and {@link IAvatarBatchCallback#completed(Avatar[])} is
+	 * called once with every available avatar after all fetches finish.
+	 * 
+	 * @param hashes
+	 * @param callback
+	 * @return this store
+	 */
+	IAvatarStore loadAvatarsByHash(Collection<String> hashes,
+			IAvatarBatchCallback callback);
+
+	/**
+	 * Load avatars for all specified e-mail addresses asynchronously
+	 * 
+	 * @see #loadAvatarsByHash(Collection, IAvatarBatchCallback)
+	 * @param emails
+	 * @param callback
+	 * @return this store
+	 */
+	IAvatarStore loadAvatarsByEmail(Collection<String> emails,
+			IAvatarBatchCallback callback);
+
 	/**
 	 * Load avatar by e-mail address asynchronously
 	 * 
@@ -93,6 +202,16 @@ public interface IAvatarStore {
 	 */
 	Avatar getAvatarByHash(String hash);
 
+	/**
+	 * Get cached avatar by hash at the given display size
+	 * 
+	 * @param hash
+	 * @param size
+	 *            displayed size, 0 for the server's default size
+	 * @return avatar or null if that size is not in cache
+	 */
+	Avatar getAvatarByHash(String hash, int size);
+
 	/**
 	 * Get cached avatar by e-mail address
 	 * 
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * Runtime metrics of an avatar store. Available as an OSGi service and as the
+ * {@link AvatarStoreMetrics#OBJECT_NAME} MXBean in the platform MBean server.
+ * Durations are reported in milliseconds.
+ *
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+@MXBean
+public interface IAvatarStoreMetrics {
+
+	/**
+	 * @return number of in-memory lookups that found an avatar
+	 */
+	long getCacheHitCount();
+
+	/**
+	 * @return number of in-memory lookups that did not find an avatar
+	 */
+	long getCacheMissCount();
+
+	/**
+	 * @return number of avatars evicted from memory
+	 */
+	long getCacheEvictionCount();
+
+	/**
+	 * @return number of avatars held in memory
+	 */
+	int getCacheSize();
+
+	/**
+	 * @return number of image bytes held in memory
+	 */
+	long getCacheByteCount();
+
+	/**
+	 * @return number of image bytes held outside of the heap
+	 */
+	long getOffHeapByteCount();
+
+	/**
+	 * @return number of bytes allocated outside of the heap
+	 */
+	long getOffHeapCapacity();
+
+	/**
+	 * @return number of loads waiting for or running a fetch
+	 */
+	int getInFlightLoadCount();
+
+	/**
+	 * @return number of fetches queued and not yet running
+	 */
+	int getQueuedFetchCount();
+
+	/**
+	 * @return number of loads skipped because the avatar recently failed to
+	 *         load
+	 */
+	long getNegativeCacheHitCount();
+
+	/**
+	 * @return number of avatars that recently failed to load
+	 */
+	int getNegativeCacheSize();
+
+	/**
+	 * @return number of completed fetches
+	 */
+	long getFetchCount();
+
+	/**
+	 * @return number of fetches that failed with an exception
+	 */
+	long getFetchErrorCount();
+
+	/**
+	 * @return mean fetch time
+	 */
+	double getFetchTimeMean();
+
+	/**
+	 * @return 95th percentile fetch time
+	 */
+	double getFetchTime95thPercentile();
+
+	/**
+	 * @return maximum fetch time
+	 */
+	double getFetchTimeMax();
+
+	/**
+	 * @return number of image bytes downloaded
+	 */
+	long getBytesDownloaded();
+
+	/**
+	 * @return number of responses by HTTP status code
+	 */
+	Map<Integer, Long> getHttpStatusCounts();
+
+	/**
+	 * @return number of decoded images
+	 */
+	long getDecodeCount();
+
+	/**
+	 * @return mean decode time
+	 */
+	double getDecodeTimeMean();
+
+	/**
+	 * @return 95th percentile decode time
+	 */
+	double getDecodeTime95thPercentile();
+
+	/**
+	 * @return number of scaled images
+	 */
+	long getScaleCount();
+
+	/**
+	 * @return mean scale time
+	 */
+	double getScaleTimeMean();
+
+	/**
+	 * @return 95th percentile scale time
+	 */
+	double getScaleTime95thPercentile();
+
+	/**
+	 * @return number of persisted avatars
+	 */
+	int getPersistedCount();
+
+	/**
+	 * @return number of bytes used by persisted avatars
+	 */
+	long getPersistedByteCount();
+
+	/**
+	 * Reset fetch, response, decode and scale counters. Counters kept by the
+	 * cache itself and current sizes are not affected.
+	 */
+	void reset();
+}
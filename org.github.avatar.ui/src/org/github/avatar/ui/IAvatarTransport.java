@@ -0,0 +1,37 @@
+/*******************************************************************************
+ *  Copyright (c) 2011 Kevin Sawicki
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *******************************************************************************/
+package org.github.avatar.ui;
+
+import java.io.IOException;
+
+/**
+ * Transport used by an avatar store to download avatar images.
+ * Implementations are shared by all fetch threads and must be thread-safe.
+ * 
+ * @author Kevin Sawicki (kevin@github.com)
+ */
+public interface IAvatarTransport {
+
+	/**
+	 * Get resource at url. Implementations must bound the time spent
+	 * connecting and reading so a stalled server cannot block a fetch
+	 * indefinitely.
+	 * 
+	 * @param url
+	 * @param etag
+	 *            entity tag of the cached copy, null if none
+	 * @param lastModified
+	 *            last modified time of the cached copy, 0 if unknown
+	 * @return non-null response
+	 * @throws IOException
+	 */
+	AvatarResponse get(String url, String etag, long lastModified)
+			throws IOException;
+
+}
@@ -17,26 +17,66 @@ public class Messages extends NLS {
 
 	private static final String BUNDLE_NAME = "org.github.avatar.ui.messages"; //$NON-NLS-1$
 
+	/**
+	 * AvatarFetchScheduler_JobName
+	 */
+	public static String AvatarFetchScheduler_JobName;
+
+	/**
+	 * AvatarFileStore_SaveJobName
+	 */
+	public static String AvatarFileStore_SaveJobName;
+
+	/**
+	 * AvatarHttpTransport_AvatarTooLarge
+	 */
+	public static String AvatarHttpTransport_AvatarTooLarge;
+
 	/**
 	 * AvatarPlugin_ExceptionLoadingStore
 	 */
 	public static String AvatarPlugin_ExceptionLoadingStore;
 
+	/**
+	 * AvatarPlugin_ExceptionRegisteringMetrics
+	 */
+	public static String AvatarPlugin_ExceptionRegisteringMetrics;
+
 	/**
 	 * AvatarPlugin_ExceptionSavingStore
 	 */
 	public static String AvatarPlugin_ExceptionSavingStore;
 
+	/**
+	 * AvatarPreferencePage_PrefetchAvatarsText
+	 */
+	public static String AvatarPreferencePage_PrefetchAvatarsText;
+
+	/**
+	 * AvatarPreferencePage_PrefetchDialogTitle
+	 */
+	public static String AvatarPreferencePage_PrefetchDialogTitle;
+
 	/**
 	 * AvatarPreferencePage_RefreshAvatarsText
 	 */
 	public static String AvatarPreferencePage_RefreshAvatarsText;
 
+	/**
+	 * AvatarRefreshScheduler_JobName
+	 */
+	public static String AvatarRefreshScheduler_JobName;
+
 	/**
 	 * AvatarStore_LoadingAvatar
 	 */
 	public static String AvatarStore_LoadingAvatar;
 
+	/**
+	 * AvatarStore_PrefetchJobName
+	 */
+	public static String AvatarStore_PrefetchJobName;
+
 	/**
 	 * AvatarStore_RefreshJobName
 	 */